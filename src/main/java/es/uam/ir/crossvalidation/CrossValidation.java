@@ -8,12 +8,13 @@
 */
 package es.uam.ir.crossvalidation;
 
+import es.uam.ir.util.RandomSource;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  *
@@ -22,8 +23,6 @@ import java.util.Random;
  */
 public class CrossValidation {
 
-    private static final Random rnd = new Random();
-
     /**
      * 
      * @param dataPath
@@ -32,6 +31,19 @@ public class CrossValidation {
      * @throws IOException 
      */
     public static void crowssValidation(String dataPath, String outputPath, int nfolds) throws IOException {
+        crowssValidation(dataPath, outputPath, nfolds, new RandomSource());
+    }
+
+    /**
+     * 
+     * @param dataPath
+     * @param outputPath
+     * @param nfolds
+     * @param random source of the random fold assignment
+     * @throws IOException 
+     */
+    public static void crowssValidation(String dataPath, String outputPath, int nfolds, RandomSource random) throws IOException {
+        SplittableRandom rnd = random.get();
         PrintStream trainData[] = new PrintStream[nfolds];
         PrintStream testData[] = new PrintStream[nfolds];
 
@@ -9,13 +9,7 @@
 package es.uam.ir.datagenerator;
 
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
-import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.PrintStream;
-import static org.ranksys.formats.parsing.Parsers.lp;
-import org.ranksys.formats.preference.SimpleRatingPreferencesReader;
+import es.uam.ir.ranksys.fast.preference.TruncatedFastPreferenceData;
 
 /**
  *
@@ -30,20 +24,22 @@ public class TruncateRatings {
      * @param data
      * @param threshold
      * @return
-     * @throws IOException 
      */
-    public static FastPreferenceData<Long, Long> run(FastPreferenceData<Long, Long> data, double threshold) throws IOException {
-
-        ByteArrayOutputStream newDataOutputStream = new ByteArrayOutputStream();
-        PrintStream newData = new PrintStream(newDataOutputStream);
-
-        data.getAllUsers().forEachOrdered(user -> {
-            data.getUserPreferences(user).forEachOrdered(up -> newData.println(user + "\t" + up.v1 + "\t" + Math.max(up.v2 - threshold + 1, 0)));
-        });
-
-        ByteArrayInputStream newDataInputStream = new ByteArrayInputStream(newDataOutputStream.toByteArray());
+    public static FastPreferenceData<Long, Long> run(FastPreferenceData<Long, Long> data, double threshold) {
+        return run(data, threshold, false);
+    }
 
-        return SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(newDataInputStream, lp, lp), data, data);
+    /**
+     * 
+     * @param data
+     * @param threshold
+     * @param dropZeros whether entries that become zero are removed, in a
+     * compacted copy of the data
+     * @return
+     */
+    public static FastPreferenceData<Long, Long> run(FastPreferenceData<Long, Long> data, double threshold, boolean dropZeros) {
+        TruncatedFastPreferenceData<Long, Long> truncatedData = new TruncatedFastPreferenceData<>(data, threshold);
+        return dropZeros ? truncatedData.compact() : truncatedData;
     }
 
 }
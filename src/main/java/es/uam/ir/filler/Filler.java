@@ -12,6 +12,7 @@ import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.ir.ranksys.rec.fast.basic.RandomRecommender;
+import es.uam.ir.util.RandomSource;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -45,9 +46,21 @@ public class Filler<U, I> {
      * @param data 
      */
     public Filler(Mode mode, FastItemIndex<I> iIndex, FastUserIndex<U> uIndex, FastPreferenceData<U, I> data) {
+        this(mode, iIndex, uIndex, data, new RandomSource());
+    }
+
+    /**
+     * 
+     * @param mode
+     * @param iIndex
+     * @param uIndex
+     * @param data 
+     * @param random source of the random fill
+     */
+    public Filler(Mode mode, FastItemIndex<I> iIndex, FastUserIndex<U> uIndex, FastPreferenceData<U, I> data, RandomSource random) {
         this.mode = mode;
         this.data = data;
-        this.randomRecommender = new RandomRecommender<>(uIndex, iIndex);
+        this.randomRecommender = new RandomRecommender<>(uIndex, iIndex, random);
     }
 
     /**
@@ -90,4 +103,43 @@ public class Filler<U, I> {
         }
         return newItems;
     }
+
+    /**
+     * Fills a recommendation given in index space, in place, up to a length
+     * with random items that pass the filter and are not yet recommended.
+     * The random items of a user are drawn from a generator split by the
+     * target size, so that the fills of different target sizes are
+     * independent.
+     *
+     * @param iidxs indices of the recommended items, with room for length
+     * items
+     * @param size number of recommended items
+     * @param length length to be reached
+     * @param filter
+     * @param uidx index of the user
+     * @param targetSize target size of the recommendation
+     * @return the length of the filled recommendation
+     */
+    public int fill(int[] iidxs, int size, int length, IntPredicate filter, int uidx, int targetSize) {
+        if (mode == Mode.NONE || size >= length) {
+            return size;
+        }
+
+        int n = size;
+        IntPredicate notRecommended = iidx -> {
+            for (int i = 0; i < n; i++) {
+                if (iidxs[i] == iidx) {
+                    return false;
+                }
+            }
+            return true;
+        };
+        for (Tuple2id iv : randomRecommender.split(targetSize).getRecommendation(uidx, length - size, iidx -> notRecommended.test(iidx) && filter.test(iidx)).getIidxs()) {
+            if (size >= length) {
+                break;
+            }
+            iidxs[size++] = iv.v1;
+        }
+        return size;
+    }
 }
@@ -0,0 +1,418 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.fast.preference;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.AbstractFastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import it.unimi.dsi.fastutil.doubles.AbstractDoubleIterator;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.AbstractIntIterator;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.ranksys.formats.parsing.Parsers.lp;
+import org.jooq.lambda.tuple.Tuple3;
+import org.ranksys.formats.preference.SimpleRatingPreferencesReader;
+
+/**
+ * Preference data stored in a binary file with a compressed sparse row layout
+ * and accessed through memory mapping. The file holds the user and item ids
+ * of the indexes it was built with, followed by the user-major and the
+ * item-major preferences: for each side, an array of offsets, an array of
+ * indices and an array of rating values.
+ *
+ * <p>
+ * The binary file is built once from the tab-separated rating file and
+ * stored next to it, with the extension changed to .bin. It is rebuilt when
+ * the rating file is newer or when it was built with different indexes.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class MappedFastPreferenceData<U, I> extends AbstractFastPreferenceData<U, I> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAGIC = 0x54535042;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+    private final int numPreferences;
+    private final IntBuffer uOffsets;
+    private final IntBuffer uIidxs;
+    private final FloatBuffer uVs;
+    private final IntBuffer iOffsets;
+    private final IntBuffer iUidxs;
+    private final FloatBuffer iVs;
+
+    private MappedFastPreferenceData(FastUserIndex<U> users, FastItemIndex<I> items, int numPreferences,
+            IntBuffer uOffsets, IntBuffer uIidxs, FloatBuffer uVs, IntBuffer iOffsets, IntBuffer iUidxs, FloatBuffer iVs) {
+        super(users, items);
+        this.numPreferences = numPreferences;
+        this.uOffsets = uOffsets;
+        this.uIidxs = uIidxs;
+        this.uVs = uVs;
+        this.iOffsets = iOffsets;
+        this.iUidxs = iUidxs;
+        this.iVs = iVs;
+    }
+
+    /**
+     * Loads the preferences of a tab-separated rating file, building its
+     * binary version first if it does not exist or is out of date.
+     *
+     * @param dataPath path of the rating file
+     * @param users user index
+     * @param items item index
+     * @return the memory-mapped preference data
+     * @throws IOException
+     */
+    public static MappedFastPreferenceData<Long, Long> load(String dataPath, FastUserIndex<Long> users, FastItemIndex<Long> items) throws IOException {
+        File binFile = new File(getBinaryPath(dataPath));
+        MappedFastPreferenceData<Long, Long> data = null;
+        if (binFile.exists() && binFile.lastModified() >= new File(dataPath).lastModified()) {
+            data = open(binFile, users, items);
+        }
+        if (data == null) {
+            write(dataPath, binFile, users, items);
+            data = open(binFile, users, items);
+            if (data == null) {
+                throw new IOException("binary preference file " + binFile + " does not match the indexes");
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Path of the binary version of a rating file.
+     *
+     * @param dataPath
+     * @return
+     */
+    public static String getBinaryPath(String dataPath) {
+        return (dataPath.endsWith(".txt") ? dataPath.substring(0, dataPath.length() - 4) : dataPath) + ".bin";
+    }
+
+    /**
+     * Maps a binary preference file, or returns null if it is not valid or
+     * was built with different indexes.
+     */
+    private static MappedFastPreferenceData<Long, Long> open(File binFile, FastUserIndex<Long> users, FastItemIndex<Long> items) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(binFile, "r"); FileChannel channel = file.getChannel()) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            IntBuffer header = map(channel, 0, HEADER_BYTES).asIntBuffer();
+            int nUsers = header.get(2);
+            int nItems = header.get(3);
+            int nPrefs = header.get(4);
+            if (header.get(0) != MAGIC || header.get(1) != VERSION || nUsers != users.numUsers() || nItems != items.numItems()) {
+                return null;
+            }
+
+            long position = HEADER_BYTES;
+            LongBuffer userIds = map(channel, position, (long) nUsers * Long.BYTES).asLongBuffer();
+            position += (long) nUsers * Long.BYTES;
+            LongBuffer itemIds = map(channel, position, (long) nItems * Long.BYTES).asLongBuffer();
+            position += (long) nItems * Long.BYTES;
+            for (int uidx = 0; uidx < nUsers; uidx++) {
+                if (userIds.get(uidx) != users.uidx2user(uidx)) {
+                    return null;
+                }
+            }
+            for (int iidx = 0; iidx < nItems; iidx++) {
+                if (itemIds.get(iidx) != items.iidx2item(iidx)) {
+                    return null;
+                }
+            }
+
+            IntBuffer uOffsets = mapInts(channel, position, nUsers + 1);
+            position += (long) (nUsers + 1) * Integer.BYTES;
+            IntBuffer uIidxs = mapInts(channel, position, nPrefs);
+            position += (long) nPrefs * Integer.BYTES;
+            FloatBuffer uVs = mapFloats(channel, position, nPrefs);
+            position += (long) nPrefs * Float.BYTES;
+            IntBuffer iOffsets = mapInts(channel, position, nItems + 1);
+            position += (long) (nItems + 1) * Integer.BYTES;
+            IntBuffer iUidxs = mapInts(channel, position, nPrefs);
+            position += (long) nPrefs * Integer.BYTES;
+            FloatBuffer iVs = mapFloats(channel, position, nPrefs);
+
+            return new MappedFastPreferenceData<>(users, items, nPrefs, uOffsets, uIidxs, uVs, iOffsets, iUidxs, iVs);
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static IntBuffer mapInts(FileChannel channel, long position, int n) throws IOException {
+        return map(channel, position, (long) n * Integer.BYTES).asIntBuffer();
+    }
+
+    private static FloatBuffer mapFloats(FileChannel channel, long position, int n) throws IOException {
+        return map(channel, position, (long) n * Float.BYTES).asFloatBuffer();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Builds the binary version of a rating file. Preferences of users or
+     * items that are not in the indexes are skipped.
+     *
+     * @param dataPath
+     * @param binFile
+     * @param users
+     * @param items
+     * @throws IOException
+     */
+    private static void write(String dataPath, File binFile, FastUserIndex<Long> users, FastItemIndex<Long> items) throws IOException {
+        int nUsers = users.numUsers();
+        int nItems = items.numItems();
+
+        // Parsed preferences, in file order
+        int[] prefUidxs = new int[1024];
+        int[] prefIidxs = new int[1024];
+        float[] prefVs = new float[1024];
+        int nPrefs = 0;
+        try (Stream<Tuple3<Long, Long, Double>> prefs = SimpleRatingPreferencesReader.get().read(dataPath, lp, lp)) {
+            for (Tuple3<Long, Long, Double> pref : (Iterable<Tuple3<Long, Long, Double>>) prefs::iterator) {
+                int uidx = users.user2uidx(pref.v1);
+                int iidx = items.item2iidx(pref.v2);
+                if (uidx < 0 || iidx < 0) {
+                    continue;
+                }
+                if (nPrefs == prefUidxs.length) {
+                    prefUidxs = Arrays.copyOf(prefUidxs, 2 * nPrefs);
+                    prefIidxs = Arrays.copyOf(prefIidxs, 2 * nPrefs);
+                    prefVs = Arrays.copyOf(prefVs, 2 * nPrefs);
+                }
+                prefUidxs[nPrefs] = uidx;
+                prefIidxs[nPrefs] = iidx;
+                prefVs[nPrefs] = pref.v3.floatValue();
+                nPrefs++;
+            }
+        }
+
+        File tmpFile = new File(binFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile); FileChannel channel = out.getChannel()) {
+            ByteBuffer header = allocate(HEADER_BYTES);
+            header.asIntBuffer().put(new int[]{MAGIC, VERSION, nUsers, nItems, nPrefs});
+            write(channel, header);
+            ByteBuffer ids = allocate(Long.BYTES * nUsers);
+            LongBuffer userIds = ids.asLongBuffer();
+            for (int uidx = 0; uidx < nUsers; uidx++) {
+                userIds.put(users.uidx2user(uidx));
+            }
+            write(channel, ids);
+            ids = allocate(Long.BYTES * nItems);
+            LongBuffer itemIds = ids.asLongBuffer();
+            for (int iidx = 0; iidx < nItems; iidx++) {
+                itemIds.put(items.iidx2item(iidx));
+            }
+            write(channel, ids);
+            writeSide(channel, nUsers, nPrefs, prefUidxs, prefIidxs, prefVs);
+            writeSide(channel, nItems, nPrefs, prefIidxs, prefUidxs, prefVs);
+        }
+        Files.move(tmpFile.toPath(), binFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the offsets, indices and values of one side of the preferences,
+     * grouped by row with a counting sort. Within a row, preferences are
+     * sorted by column index.
+     */
+    private static void writeSide(FileChannel channel, int nRows, int nPrefs, int[] rows, int[] cols, float[] vs) throws IOException {
+        int[] offsets = new int[nRows + 1];
+        for (int j = 0; j < nPrefs; j++) {
+            offsets[rows[j] + 1]++;
+        }
+        for (int r = 0; r < nRows; r++) {
+            offsets[r + 1] += offsets[r];
+        }
+        int[] next = Arrays.copyOf(offsets, nRows);
+        int[] sortedCols = new int[nPrefs];
+        float[] sortedVs = new float[nPrefs];
+        for (int j = 0; j < nPrefs; j++) {
+            int k = next[rows[j]]++;
+            sortedCols[k] = cols[j];
+            sortedVs[k] = vs[j];
+        }
+        for (int r = 0; r < nRows; r++) {
+            sortRow(sortedCols, sortedVs, offsets[r], offsets[r + 1]);
+        }
+
+        ByteBuffer buffer = allocate(Integer.BYTES * (nRows + 1));
+        buffer.asIntBuffer().put(offsets);
+        write(channel, buffer);
+        buffer = allocate(Integer.BYTES * nPrefs);
+        buffer.asIntBuffer().put(sortedCols);
+        write(channel, buffer);
+        buffer.clear();
+        buffer.asFloatBuffer().put(sortedVs);
+        write(channel, buffer);
+    }
+
+    /**
+     * Sorts a row by column index, keeping the order of repeated columns. Each
+     * column is packed with its position in the row into a long, so the row
+     * is sorted with a primitive sort.
+     */
+    private static void sortRow(int[] cols, float[] vs, int from, int to) {
+        int length = to - from;
+        if (length < 2) {
+            return;
+        }
+        long[] keys = new long[length];
+        for (int i = 0; i < length; i++) {
+            keys[i] = ((long) cols[from + i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        float[] rowVs = Arrays.copyOfRange(vs, from, to);
+        for (int i = 0; i < length; i++) {
+            cols[from + i] = (int) (keys[i] >>> 32);
+            vs[from + i] = rowVs[(int) keys[i]];
+        }
+    }
+
+    @Override
+    public int numUsers(int iidx) {
+        return iOffsets.get(iidx + 1) - iOffsets.get(iidx);
+    }
+
+    @Override
+    public int numItems(int uidx) {
+        return uOffsets.get(uidx + 1) - uOffsets.get(uidx);
+    }
+
+    @Override
+    public int numPreferences() {
+        return numPreferences;
+    }
+
+    @Override
+    public IntStream getUidxWithPreferences() {
+        return IntStream.range(0, numUsers()).filter(uidx -> numItems(uidx) > 0);
+    }
+
+    @Override
+    public IntStream getIidxWithPreferences() {
+        return IntStream.range(0, numItems()).filter(iidx -> numUsers(iidx) > 0);
+    }
+
+    @Override
+    public Stream<IdxPref> getUidxPreferences(int uidx) {
+        return IntStream.range(uOffsets.get(uidx), uOffsets.get(uidx + 1))
+                .mapToObj(j -> new IdxPref(uIidxs.get(j), uVs.get(j)));
+    }
+
+    @Override
+    public Stream<IdxPref> getIidxPreferences(int iidx) {
+        return IntStream.range(iOffsets.get(iidx), iOffsets.get(iidx + 1))
+                .mapToObj(j -> new IdxPref(iUidxs.get(j), iVs.get(j)));
+    }
+
+    @Override
+    public IntIterator getUidxIidxs(int uidx) {
+        return new BufferIntIterator(uIidxs, uOffsets.get(uidx), uOffsets.get(uidx + 1));
+    }
+
+    @Override
+    public DoubleIterator getUidxVs(int uidx) {
+        return new BufferDoubleIterator(uVs, uOffsets.get(uidx), uOffsets.get(uidx + 1));
+    }
+
+    @Override
+    public IntIterator getIidxUidxs(int iidx) {
+        return new BufferIntIterator(iUidxs, iOffsets.get(iidx), iOffsets.get(iidx + 1));
+    }
+
+    @Override
+    public DoubleIterator getIidxVs(int iidx) {
+        return new BufferDoubleIterator(iVs, iOffsets.get(iidx), iOffsets.get(iidx + 1));
+    }
+
+    @Override
+    public boolean useIteratorsPreferentially() {
+        return true;
+    }
+
+    private static class BufferIntIterator extends AbstractIntIterator {
+
+        private final IntBuffer buffer;
+        private final int to;
+        private int j;
+
+        BufferIntIterator(IntBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.j = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return j < to;
+        }
+
+        @Override
+        public int nextInt() {
+            return buffer.get(j++);
+        }
+    }
+
+    private static class BufferDoubleIterator extends AbstractDoubleIterator {
+
+        private final FloatBuffer buffer;
+        private final int to;
+        private int j;
+
+        BufferDoubleIterator(FloatBuffer buffer, int from, int to) {
+            this.buffer = buffer;
+            this.j = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return j < to;
+        }
+
+        @Override
+        public double nextDouble() {
+            return buffer.get(j++);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.fast.preference;
+
+import es.uam.eps.ir.ranksys.fast.preference.AbstractFastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.fast.preference.IdxPref;
+import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
+import it.unimi.dsi.fastutil.doubles.AbstractDoubleIterator;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import static org.jooq.lambda.tuple.Tuple.tuple;
+
+/**
+ * View of preference data where each rating r is replaced by
+ * max(r - threshold + 1, 0). Values are computed on access over the
+ * underlying data, without copying it. Entries that become zero are kept.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class TruncatedFastPreferenceData<U, I> extends AbstractFastPreferenceData<U, I> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FastPreferenceData<U, I> data;
+    private final double threshold;
+
+    /**
+     *
+     * @param data underlying preference data
+     * @param threshold rating threshold
+     */
+    public TruncatedFastPreferenceData(FastPreferenceData<U, I> data, double threshold) {
+        super(data, data);
+        this.data = data;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Copy of the truncated data without the entries that become zero.
+     *
+     * @return
+     */
+    public FastPreferenceData<U, I> compact() {
+        return SimpleFastPreferenceData.load(getUidxWithPreferences().boxed()
+                .flatMap(uidx -> getUidxPreferences(uidx)
+                        .filter(pref -> pref.v2 > 0)
+                        .map(pref -> tuple(uidx2user(uidx), iidx2item(pref.v1), pref.v2))),
+                data, data);
+    }
+
+    private double truncate(double value) {
+        return Math.max(value - threshold + 1, 0);
+    }
+
+    @Override
+    public int numUsers(int iidx) {
+        return data.numUsers(iidx);
+    }
+
+    @Override
+    public int numItems(int uidx) {
+        return data.numItems(uidx);
+    }
+
+    @Override
+    public int numPreferences() {
+        return data.numPreferences();
+    }
+
+    @Override
+    public IntStream getUidxWithPreferences() {
+        return data.getUidxWithPreferences();
+    }
+
+    @Override
+    public IntStream getIidxWithPreferences() {
+        return data.getIidxWithPreferences();
+    }
+
+    @Override
+    public Stream<IdxPref> getUidxPreferences(int uidx) {
+        return data.getUidxPreferences(uidx).map(pref -> new IdxPref(pref.v1, truncate(pref.v2)));
+    }
+
+    @Override
+    public Stream<IdxPref> getIidxPreferences(int iidx) {
+        return data.getIidxPreferences(iidx).map(pref -> new IdxPref(pref.v1, truncate(pref.v2)));
+    }
+
+    @Override
+    public IntIterator getUidxIidxs(int uidx) {
+        return data.getUidxIidxs(uidx);
+    }
+
+    @Override
+    public DoubleIterator getUidxVs(int uidx) {
+        return new TruncatedIterator(data.getUidxVs(uidx));
+    }
+
+    @Override
+    public IntIterator getIidxUidxs(int iidx) {
+        return data.getIidxUidxs(iidx);
+    }
+
+    @Override
+    public DoubleIterator getIidxVs(int iidx) {
+        return new TruncatedIterator(data.getIidxVs(iidx));
+    }
+
+    @Override
+    public boolean useIteratorsPreferentially() {
+        return data.useIteratorsPreferentially();
+    }
+
+    private class TruncatedIterator extends AbstractDoubleIterator {
+
+        private final DoubleIterator values;
+
+        TruncatedIterator(DoubleIterator values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return values.hasNext();
+        }
+
+        @Override
+        public double nextDouble() {
+            return truncate(values.nextDouble());
+        }
+    }
+}
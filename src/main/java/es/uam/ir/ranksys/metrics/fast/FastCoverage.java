@@ -0,0 +1,35 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+/**
+ * Coverage at a cutoff: the fraction of the cutoff filled by the
+ * recommendation, as Coverage.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastCoverage implements FastRecommendationMetric {
+
+    private final int k;
+
+    /**
+     * Constructor.
+     *
+     * @param k cutoff
+     */
+    public FastCoverage(int k) {
+        this.k = k;
+    }
+
+    @Override
+    public double evaluate(int uidx, int[] iidxs, int length) {
+        return Math.min(length, k) * 1.0 / k;
+    }
+}
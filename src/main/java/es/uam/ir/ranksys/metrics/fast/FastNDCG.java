@@ -0,0 +1,54 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+import es.uam.ir.util.IdxSet;
+
+/**
+ * Normalized discounted cumulative gain at a cutoff, with binary gains and
+ * logarithmic discount, as NDCG. Discounts and ideal DCGs are taken from
+ * the relevance model, which must have been built for the same cutoff.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastNDCG implements FastRecommendationMetric {
+
+    private final int cutoff;
+    private final FastRelevanceModel relModel;
+
+    /**
+     * Constructor.
+     *
+     * @param cutoff maximum length of evaluated recommendation lists
+     * @param relModel relevance model
+     */
+    public FastNDCG(int cutoff, FastRelevanceModel relModel) {
+        this.cutoff = cutoff;
+        this.relModel = relModel;
+    }
+
+    @Override
+    public double evaluate(int uidx, int[] iidxs, int length) {
+        IdxSet relevant = relModel.getRelevantItems(uidx);
+
+        double ndcg = 0.0;
+        for (int rank = 0; rank < Math.min(length, cutoff); rank++) {
+            if (relevant.contains(iidxs[rank])) {
+                ndcg += relModel.disc(rank);
+            }
+        }
+        if (ndcg > 0) {
+            double idcg = relModel.getIdealDCG(uidx);
+            ndcg = (idcg > 0.0) ? ndcg / idcg : 0;
+        }
+
+        return ndcg;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+/**
+ * Precision at a cutoff: the fraction of the cutoff taken by relevant items.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastPrecision implements FastRecommendationMetric {
+
+    private final int cutoff;
+    private final FastRelevanceModel relModel;
+
+    /**
+     * Constructor.
+     *
+     * @param cutoff maximum length of evaluated recommendation lists
+     * @param relModel relevance model
+     */
+    public FastPrecision(int cutoff, FastRelevanceModel relModel) {
+        this.cutoff = cutoff;
+        this.relModel = relModel;
+    }
+
+    @Override
+    public double evaluate(int uidx, int[] iidxs, int length) {
+        return FastRecall.countRelevant(relModel.getRelevantItems(uidx), iidxs, Math.min(length, cutoff)) / (double) cutoff;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+import es.uam.ir.util.IdxSet;
+
+/**
+ * Recall at a cutoff: the fraction of the relevant items of the user
+ * recommended within the cutoff.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastRecall implements FastRecommendationMetric {
+
+    private final int cutoff;
+    private final FastRelevanceModel relModel;
+
+    /**
+     * Constructor.
+     *
+     * @param cutoff maximum length of evaluated recommendation lists
+     * @param relModel relevance model
+     */
+    public FastRecall(int cutoff, FastRelevanceModel relModel) {
+        this.cutoff = cutoff;
+        this.relModel = relModel;
+    }
+
+    @Override
+    public double evaluate(int uidx, int[] iidxs, int length) {
+        IdxSet relevant = relModel.getRelevantItems(uidx);
+        if (relevant.size() == 0) {
+            return 0.0;
+        }
+        return countRelevant(relevant, iidxs, Math.min(length, cutoff)) / (double) relevant.size();
+    }
+
+    static int countRelevant(IdxSet relevant, int[] iidxs, int length) {
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (relevant.contains(iidxs[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+/**
+ * Metric of a recommendation given in index space, as the indices of the
+ * recommended items in decreasing order of score, so that no item needs to
+ * be mapped back to its id nor boxed. Metrics are stateless and can be
+ * shared across threads.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public interface FastRecommendationMetric {
+
+    /**
+     * Value of the metric for a recommendation.
+     *
+     * @param uidx index of the user
+     * @param iidxs indices of the recommended items
+     * @param length length of the recommendation, in the first positions of
+     * iidxs
+     * @return
+     */
+    double evaluate(int uidx, int[] iidxs, int length);
+}
@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.metrics.fast;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.ir.util.IdxSet;
+
+/**
+ * Binary relevance of the test items of each user: an item is relevant if
+ * its rating is not lower than a threshold. The relevant items of each user
+ * are stored as an index set, indexed by user, together with the ideal DCG
+ * of the user at the cutoff and a table of the logarithmic discounts of the
+ * ranks within the cutoff. The model is built once per fold and shared
+ * read-only by all the metrics, recommenders and target sizes.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FastRelevanceModel {
+
+    private final IdxSet[] relevantItems;
+    private final double[] disc;
+    private final double[] idcg;
+
+    /**
+     * Constructor.
+     *
+     * @param testData test subset of preferences
+     * @param threshold relevance threshold
+     * @param cutoff maximum length of evaluated recommendation lists
+     */
+    public FastRelevanceModel(FastPreferenceData<?, ?> testData, double threshold, int cutoff) {
+        int numItems = testData.numItems();
+        IdxSet none = IdxSet.of(new int[0], numItems);
+        relevantItems = new IdxSet[testData.numUsers()];
+        testData.getAllUidx().parallel().forEach(uidx -> relevantItems[uidx] = testData.numItems(uidx) == 0
+                ? none
+                : IdxSet.of(testData.getUidxPreferences(uidx)
+                        .filter(iv -> iv.v2 >= threshold)
+                        .mapToInt(iv -> iv.v1)
+                        .toArray(), numItems));
+
+        // Discounts as in RankSys' LogarithmicDiscountModel
+        disc = new double[cutoff];
+        for (int rank = 0; rank < cutoff; rank++) {
+            disc[rank] = 1 / Math.log(rank + 2.0) * Math.log(2.0);
+        }
+        idcg = new double[relevantItems.length];
+        for (int uidx = 0; uidx < relevantItems.length; uidx++) {
+            for (int rank = 0; rank < Math.min(cutoff, relevantItems[uidx].size()); rank++) {
+                idcg[uidx] += disc[rank];
+            }
+        }
+    }
+
+    /**
+     * Relevant items of a user.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    public IdxSet getRelevantItems(int uidx) {
+        return relevantItems[uidx];
+    }
+
+    /**
+     * Logarithmic discount of a rank within the cutoff.
+     *
+     * @param rank rank, starting at 0
+     * @return
+     */
+    public double disc(int rank) {
+        return disc[rank];
+    }
+
+    /**
+     * Ideal DCG of a user at the cutoff, with binary gains.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    public double getIdealDCG(int uidx) {
+        return idcg[uidx];
+    }
+}
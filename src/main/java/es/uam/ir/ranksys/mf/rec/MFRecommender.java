@@ -0,0 +1,155 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.mf.rec;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.CandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
+import es.uam.ir.ranksys.rec.fast.UserScores;
+import es.uam.ir.ranksys.rec.fast.UserScoresRecommender;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Matrix factorization recommender, as RankSys' MFRecommender. The score of
+ * an item is the dot product of the user and item vectors. Recommendations
+ * over a filter score the whole catalog at once; recommendations over a list
+ * of candidates only compute the dot products of the candidates, in the same
+ * order of operations, so the scores are exactly the same.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class MFRecommender<U, I> extends AbstractFastRecommender<U, I> implements CandidateRecommender, UserScoresRecommender {
+
+    private final Factorization<U, I> factorization;
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param factorization matrix factorization
+     */
+    public MFRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, Factorization<U, I> factorization) {
+        super(uIndex, iIndex);
+        this.factorization = factorization;
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        return offer(uidx, maxLength, filter).toRecommendation(uidx);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, int[] candidates) {
+        return offer(uidx, maxLength, candidates).toRecommendation(uidx);
+    }
+
+    @Override
+    public UserScores getUserScores(int uidx) {
+        return new UserScores() {
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, IntPredicate filter) {
+                return MFRecommender.this.getRecommendation(uidx, maxLength, filter);
+            }
+
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, int[] candidates) {
+                return MFRecommender.this.getRecommendation(uidx, maxLength, candidates);
+            }
+
+            @Override
+            public int select(int maxLength, IntPredicate filter, int[] iidxs) {
+                return offer(uidx, maxLength, filter).toIidxs(iidxs);
+            }
+
+            @Override
+            public int select(int maxLength, int[] candidates, int[] iidxs) {
+                return offer(uidx, maxLength, candidates).toIidxs(iidxs);
+            }
+        };
+    }
+
+    /**
+     * Offers the items that pass a filter to a top-n selector, scoring the
+     * whole catalog at once. No item is offered for users out of the
+     * factorization.
+     */
+    private TopNSelector offer(int uidx, int maxLength, IntPredicate filter) {
+        TopNSelector selector = TopNSelector.get(maxLength);
+        DoubleMatrix1D pu = factorization.getUserVector(uidx2user(uidx));
+        if (pu == null) {
+            return selector;
+        }
+
+        DoubleMatrix1D r = factorization.getItemMatrix().zMult(pu, null);
+        for (int iidx = 0; iidx < r.size(); iidx++) {
+            if (filter.test(iidx)) {
+                selector.add(iidx, r.getQuick(iidx));
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * Offers a list of candidates to a top-n selector, scoring only the
+     * candidates. No item is offered for users out of the factorization.
+     */
+    private TopNSelector offer(int uidx, int maxLength, int[] candidates) {
+        TopNSelector selector = TopNSelector.get(maxLength);
+        int fuidx = factorization.user2uidx(uidx2user(uidx));
+        if (fuidx < 0) {
+            return selector;
+        }
+
+        DenseDoubleMatrix2D p = factorization.getUserMatrix();
+        DenseDoubleMatrix2D q = factorization.getItemMatrix();
+        for (int iidx : candidates) {
+            selector.add(iidx, dot(p, fuidx, q, iidx, factorization.getK()));
+        }
+        return selector;
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
+        int[] iidxs = candidates.toArray();
+        return getRecommendation(uidx, iidxs.length, iidxs);
+    }
+
+    /**
+     * Dot product of a user vector and an item vector, summed in the same
+     * order as Colt's DenseDoubleMatrix2D.zMult: the remainder of the
+     * dimensions modulo 4 first, then groups of 4 dimensions.
+     */
+    private static double dot(DenseDoubleMatrix2D p, int uidx, DenseDoubleMatrix2D q, int iidx, int k) {
+        double sum = 0;
+        int j = 0;
+        for (; j < k % 4; j++) {
+            sum += q.getQuick(iidx, j) * p.getQuick(uidx, j);
+        }
+        for (; j < k; j += 4) {
+            sum += q.getQuick(iidx, j) * p.getQuick(uidx, j)
+                    + q.getQuick(iidx, j + 1) * p.getQuick(uidx, j + 1)
+                    + q.getQuick(iidx, j + 2) * p.getQuick(uidx, j + 2)
+                    + q.getQuick(iidx, j + 3) * p.getQuick(uidx, j + 3);
+        }
+        // zMult stores 1 * sum + 1 * 0, which turns -0.0 into 0.0
+        return sum + 0.0;
+    }
+}
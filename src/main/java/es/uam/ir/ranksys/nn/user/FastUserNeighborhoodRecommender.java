@@ -0,0 +1,176 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
+import es.uam.ir.ranksys.rec.fast.UserScores;
+import es.uam.ir.ranksys.rec.fast.UserScoresRecommender;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import static java.lang.Math.pow;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import static java.util.stream.Collectors.toList;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * User-based nearest neighbors recommender that gathers the scores of a user
+ * in a single walk over the neighborhood. The score of an item is the sum of
+ * the ratings of the neighbors weighted by their similarity, as in
+ * UserNeighborhoodRecommender.
+ *
+ * <p>
+ * Scores are accumulated in a dense array indexed by item, shared by all the
+ * recommenders of a thread, when the neighbors of the user are expected to
+ * rate a sizable part of the catalog, and in a hash map otherwise. The expected fill is the number of ratings of
+ * the neighbors relative to the number of items. Recommendations are
+ * selected straight from the accumulator into a bounded heap, without
+ * building the map of scores, and the scores of a user are kept in the
+ * accumulator for the recommendations of several filters or lists of
+ * candidates (see getUserScores).
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class FastUserNeighborhoodRecommender<U, I> extends UserNeighborhoodRecommender<U, I> implements UserScoresRecommender {
+
+    /**
+     * Smallest expected fill for which the dense accumulator is used.
+     */
+    private static final double DENSE_FILL = 1.0 / 16;
+
+    private final boolean normalize;
+    private final int min;
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param neighborhood user neighborhood
+     * @param q exponent of the similarity
+     */
+    public FastUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q) {
+        this(data, neighborhood, q, false, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param neighborhood user neighborhood
+     * @param q exponent of the similarity
+     * @param normalize whether the score of an item is divided by the sum of
+     * the weights of the neighbors that rated it
+     * @param min minimum number of neighbors rating an item
+     */
+    protected FastUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q, boolean normalize, int min) {
+        super(data, neighborhood, q);
+        this.normalize = normalize;
+        this.min = min;
+    }
+
+    @Override
+    public Int2DoubleMap getScoresMap(int uidx) {
+        return accumulate(uidx).scores(normalize, min);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        if (uidx == -1) {
+            return new FastRecommendation(uidx, new ArrayList<>(0));
+        }
+        TopNSelector selector = TopNSelector.get(maxLength);
+        accumulate(uidx).select(normalize, min, filter, selector);
+        return selector.toRecommendation(uidx);
+    }
+
+    /**
+     * Scores of a user, read in place from the accumulator. The dense
+     * accumulator of a thread is reused for the next user, so the scores are
+     * valid until a neighborhood recommender is called again from the same
+     * thread.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    @Override
+    public UserScores getUserScores(int uidx) {
+        ItemScoreAccumulator accumulator = uidx == -1 ? new ItemScoreAccumulator.Sparse(0) : accumulate(uidx);
+        return new UserScores() {
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, IntPredicate filter) {
+                TopNSelector selector = TopNSelector.get(maxLength);
+                accumulator.select(normalize, min, filter, selector);
+                return selector.toRecommendation(uidx);
+            }
+
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, int[] candidates) {
+                TopNSelector selector = TopNSelector.get(maxLength);
+                accumulator.select(normalize, min, candidates, selector);
+                return selector.toRecommendation(uidx);
+            }
+
+            @Override
+            public int select(int maxLength, IntPredicate filter, int[] iidxs) {
+                TopNSelector selector = TopNSelector.get(maxLength);
+                accumulator.select(normalize, min, filter, selector);
+                return selector.toIidxs(iidxs);
+            }
+
+            @Override
+            public int select(int maxLength, int[] candidates, int[] iidxs) {
+                TopNSelector selector = TopNSelector.get(maxLength);
+                accumulator.select(normalize, min, candidates, selector);
+                return selector.toIidxs(iidxs);
+            }
+        };
+    }
+
+    /**
+     * Accumulates the ratings of the neighbors of a user.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    private ItemScoreAccumulator accumulate(int uidx) {
+        List<Tuple2id> neighbors = neighborhood.getNeighbors(uidx).collect(toList());
+        long fill = 0;
+        for (Tuple2id vs : neighbors) {
+            fill += data.numItems(vs.v1);
+        }
+        ItemScoreAccumulator accumulator = fill >= DENSE_FILL * data.numItems()
+                ? ItemScoreAccumulator.Dense.get(data.numItems())
+                : new ItemScoreAccumulator.Sparse((int) fill);
+        accumulator.clear();
+
+        for (Tuple2id vs : neighbors) {
+            double w = pow(vs.v2, q);
+            if (data.useIteratorsPreferentially()) {
+                IntIterator iidxs = data.getUidxIidxs(vs.v1);
+                DoubleIterator ivs = data.getUidxVs(vs.v1);
+                while (iidxs.hasNext()) {
+                    accumulator.add(iidxs.nextInt(), w, w * ivs.nextDouble());
+                }
+            } else {
+                data.getUidxPreferences(vs.v1).forEach(iv -> accumulator.add(iv.v1, w, w * iv.v2));
+            }
+        }
+        return accumulator;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user;
+
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Score sum, weight sum and number of neighbors of the items scored for a
+ * user. The dense accumulator keeps primitive arrays indexed by item, with
+ * the list of the items touched so that only those are reset, and is meant
+ * to be reused across users by a thread. The sparse accumulator keeps the
+ * items touched in a hash map, for users whose neighbors rate a small part
+ * of the catalog.
+ *
+ * <p>
+ * The scores of a user are read in place any number of times, by filter or
+ * by candidate items, until the accumulator is cleared for the next user.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+abstract class ItemScoreAccumulator {
+
+    /**
+     * Adds the rating of a neighbor to an item.
+     *
+     * @param iidx index of the item
+     * @param w weight of the neighbor
+     * @param score weighted rating of the neighbor
+     */
+    abstract void add(int iidx, double w, double score);
+
+    /**
+     * Resets the accumulator, before accumulating the scores of a user.
+     */
+    abstract void clear();
+
+    /**
+     * Scores of the items with at least min neighbors.
+     *
+     * @param normalize whether scores are divided by the weight sum
+     * @param min minimum number of neighbors rating an item
+     * @return
+     */
+    abstract Int2DoubleMap scores(boolean normalize, int min);
+
+    /**
+     * Offers the items with at least min neighbors that pass a filter to a
+     * top-n selector.
+     *
+     * @param normalize whether scores are divided by the weight sum
+     * @param min minimum number of neighbors rating an item
+     * @param filter items that can be recommended
+     * @param selector top-n selector
+     */
+    abstract void select(boolean normalize, int min, IntPredicate filter, TopNSelector selector);
+
+    /**
+     * Offers the items with at least min neighbors among a list of
+     * candidates to a top-n selector, looking up the candidates when they
+     * are fewer than the items scored.
+     *
+     * @param normalize whether scores are divided by the weight sum
+     * @param min minimum number of neighbors rating an item
+     * @param candidates sorted indices of the candidate items
+     * @param selector top-n selector
+     */
+    abstract void select(boolean normalize, int min, int[] candidates, TopNSelector selector);
+
+    static class Dense extends ItemScoreAccumulator {
+
+        private static final ThreadLocal<Dense> ACCUMULATORS = new ThreadLocal<>();
+
+        private final double[] scores;
+        private final double[] norms;
+        private final int[] counts;
+        private final int[] touched;
+        private int nTouched;
+
+        Dense(int numItems) {
+            this.scores = new double[numItems];
+            this.norms = new double[numItems];
+            this.counts = new int[numItems];
+            this.touched = new int[numItems];
+        }
+
+        /**
+         * Dense accumulator of the current thread, shared by all the
+         * recommenders and replaced by a larger one for a larger catalog.
+         *
+         * @param numItems number of items
+         * @return
+         */
+        static Dense get(int numItems) {
+            Dense accumulator = ACCUMULATORS.get();
+            if (accumulator == null || accumulator.scores.length < numItems) {
+                accumulator = new Dense(numItems);
+                ACCUMULATORS.set(accumulator);
+            }
+            return accumulator;
+        }
+
+        @Override
+        void add(int iidx, double w, double score) {
+            if (counts[iidx] == 0) {
+                touched[nTouched++] = iidx;
+            }
+            scores[iidx] += score;
+            norms[iidx] += w;
+            counts[iidx]++;
+        }
+
+        @Override
+        void clear() {
+            for (int i = 0; i < nTouched; i++) {
+                int iidx = touched[i];
+                scores[iidx] = 0;
+                norms[iidx] = 0;
+                counts[iidx] = 0;
+            }
+            nTouched = 0;
+        }
+
+        private double score(int iidx, boolean normalize) {
+            return normalize ? scores[iidx] * 1.0 / norms[iidx] : scores[iidx];
+        }
+
+        @Override
+        Int2DoubleMap scores(boolean normalize, int min) {
+            Int2DoubleOpenHashMap scoresMap = new Int2DoubleOpenHashMap(nTouched);
+            scoresMap.defaultReturnValue(0.0);
+            for (int i = 0; i < nTouched; i++) {
+                int iidx = touched[i];
+                if (counts[iidx] >= min) {
+                    scoresMap.put(iidx, score(iidx, normalize));
+                }
+            }
+            return scoresMap;
+        }
+
+        @Override
+        void select(boolean normalize, int min, IntPredicate filter, TopNSelector selector) {
+            for (int i = 0; i < nTouched; i++) {
+                int iidx = touched[i];
+                if (counts[iidx] >= min && filter.test(iidx)) {
+                    selector.add(iidx, score(iidx, normalize));
+                }
+            }
+        }
+
+        @Override
+        void select(boolean normalize, int min, int[] candidates, TopNSelector selector) {
+            if (candidates.length >= nTouched) {
+                select(normalize, min, iidx -> Arrays.binarySearch(candidates, iidx) >= 0, selector);
+                return;
+            }
+            for (int iidx : candidates) {
+                if (counts[iidx] > 0 && counts[iidx] >= min) {
+                    selector.add(iidx, score(iidx, normalize));
+                }
+            }
+        }
+    }
+
+    static class Sparse extends ItemScoreAccumulator {
+
+        private final Int2IntOpenHashMap slots;
+        private int[] iidxs;
+        private double[] scores;
+        private double[] norms;
+        private int[] counts;
+        private int size;
+
+        Sparse(int expectedSize) {
+            int capacity = Math.max(expectedSize, 16);
+            this.slots = new Int2IntOpenHashMap(capacity);
+            this.slots.defaultReturnValue(-1);
+            this.iidxs = new int[capacity];
+            this.scores = new double[capacity];
+            this.norms = new double[capacity];
+            this.counts = new int[capacity];
+        }
+
+        @Override
+        void add(int iidx, double w, double score) {
+            int slot = slots.get(iidx);
+            if (slot < 0) {
+                if (size == iidxs.length) {
+                    iidxs = Arrays.copyOf(iidxs, 2 * size);
+                    scores = Arrays.copyOf(scores, 2 * size);
+                    norms = Arrays.copyOf(norms, 2 * size);
+                    counts = Arrays.copyOf(counts, 2 * size);
+                }
+                slot = size++;
+                slots.put(iidx, slot);
+                iidxs[slot] = iidx;
+            }
+            scores[slot] += score;
+            norms[slot] += w;
+            counts[slot]++;
+        }
+
+        @Override
+        void clear() {
+            slots.clear();
+            Arrays.fill(scores, 0, size, 0);
+            Arrays.fill(norms, 0, size, 0);
+            Arrays.fill(counts, 0, size, 0);
+            size = 0;
+        }
+
+        private double score(int slot, boolean normalize) {
+            return normalize ? scores[slot] * 1.0 / norms[slot] : scores[slot];
+        }
+
+        @Override
+        Int2DoubleMap scores(boolean normalize, int min) {
+            Int2DoubleOpenHashMap scoresMap = new Int2DoubleOpenHashMap(size);
+            scoresMap.defaultReturnValue(0.0);
+            for (int slot = 0; slot < size; slot++) {
+                if (counts[slot] >= min) {
+                    scoresMap.put(iidxs[slot], score(slot, normalize));
+                }
+            }
+            return scoresMap;
+        }
+
+        @Override
+        void select(boolean normalize, int min, IntPredicate filter, TopNSelector selector) {
+            for (int slot = 0; slot < size; slot++) {
+                if (counts[slot] >= min && filter.test(iidxs[slot])) {
+                    selector.add(iidxs[slot], score(slot, normalize));
+                }
+            }
+        }
+
+        @Override
+        void select(boolean normalize, int min, int[] candidates, TopNSelector selector) {
+            if (candidates.length >= size) {
+                select(normalize, min, iidx -> Arrays.binarySearch(candidates, iidx) >= 0, selector);
+                return;
+            }
+            for (int iidx : candidates) {
+                int slot = slots.get(iidx);
+                if (slot >= 0 && counts[slot] >= min) {
+                    selector.add(iidx, score(slot, normalize));
+                }
+            }
+        }
+    }
+}
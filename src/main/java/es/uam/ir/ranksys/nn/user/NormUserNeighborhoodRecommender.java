@@ -9,26 +9,24 @@
 package es.uam.ir.ranksys.nn.user;
 
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
-import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
 import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
-import static java.lang.Math.pow;
-import java.util.function.BiFunction;
-import java.util.function.Function;
 
 /**
  * Normalized user-based nearest neighbors recommender.
  *
+ * <p>
+ * The score of an item is the sum of the ratings of the neighbors, weighted
+ * by their similarity, divided by the sum of the weights of the neighbors
+ * that rated the item. The score sums, the weight sums and the number of
+ * neighbors of each item are gathered in a single walk over the neighborhood.
+ *
  * @author Rocío Cañamares
  * @author Pablo Castells
  *
  * @param <U> type of the users
  * @param <I> type of the items
  */
-public class NormUserNeighborhoodRecommender<U, I> extends UserNeighborhoodRecommender<U, I> {
-
-    private final Function<U, BiFunction<I, Double, Double>> normalizationMap;
+public class NormUserNeighborhoodRecommender<U, I> extends FastUserNeighborhoodRecommender<U, I> {
 
     /**
      * Constructor.
@@ -38,28 +36,18 @@ public class NormUserNeighborhoodRecommender<U, I> extends UserNeighborhoodRecom
      * @param q exponent of the similarity
      */
     public NormUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q) {
-        super(data, neighborhood, q);
-        this.normalizationMap = user -> {
-            int uidx = data.user2uidx(user);
-            Int2DoubleOpenHashMap normMap = new Int2DoubleOpenHashMap();
-
-            normMap.defaultReturnValue(0.0);
-            neighborhood.getNeighbors(uidx).forEach(vs -> {
-                double w = pow(vs.v2, q);
-                data.getUidxPreferences(vs.v1).forEach(iv -> {
-                    normMap.addTo(iv.v1, w);
-                });
-            });
-            return (item, value) -> value * 1.0 / normMap.get(data.item2iidx(item));
-        };
+        this(data, neighborhood, q, 0);
     }
 
-    @Override
-    public Int2DoubleMap getScoresMap(int uidx) {
-        Int2DoubleMap scoresMap = super.getScoresMap(uidx);
-        BiFunction<I, Double, Double> norm = normalizationMap.apply(data.uidx2user(uidx));
-        scoresMap.replaceAll((idx, value) -> norm.apply(data.iidx2item(idx), value));
-
-        return scoresMap;
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param neighborhood user neighborhood
+     * @param q exponent of the similarity
+     * @param min minimum number of neighbors rating an item
+     */
+    protected NormUserNeighborhoodRecommender(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q, int min) {
+        super(data, neighborhood, q, true, min);
     }
 }
@@ -10,10 +10,6 @@ package es.uam.ir.ranksys.nn.user;
 
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
-import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
-import java.util.function.Function;
-import java.util.function.Predicate;
 
 /**
  * Variant of the normalized user-based nearest neighbors recommender which
@@ -28,21 +24,6 @@ import java.util.function.Predicate;
  */
 public class NormUserNeighborhoodRecommenderWithMinimum<U, I> extends NormUserNeighborhoodRecommender<U, I> {
 
-    private final Function<Integer, Predicate<Integer>> minFilter;
-
-    private Function<Integer, Predicate<Integer>> getMinFilter(int min) {
-        return uidx -> {
-            Int2DoubleOpenHashMap numMap = new Int2DoubleOpenHashMap();
-            numMap.defaultReturnValue(0.0);
-            neighborhood.getNeighbors(uidx).forEach(vs -> {
-                data.getUidxPreferences(vs.v1).forEach(iv -> {
-                    numMap.addTo(iv.v1, 1);
-                });
-            });
-            return iidx -> numMap.get(iidx) >= min;
-        };
-    }
-
     /**
      * Constructor.
      *
@@ -52,21 +33,7 @@ public class NormUserNeighborhoodRecommenderWithMinimum<U, I> extends NormUserNe
      * @param min minimum number of neighbors needed to be recommended
      */
     public NormUserNeighborhoodRecommenderWithMinimum(FastPreferenceData<U, I> data, UserNeighborhood<U> neighborhood, int q, int min) {
-        super(data, neighborhood, q);
-        this.minFilter = getMinFilter(min);
-    }
-
-    @Override
-    public Int2DoubleMap getScoresMap(int uidx) {
-        Predicate<Integer> filter = minFilter.apply(uidx);
-        Int2DoubleOpenHashMap scoresMap = new Int2DoubleOpenHashMap();
-
-        super.getScoresMap(uidx).int2DoubleEntrySet()
-                .stream()
-                .filter(e -> filter.test(e.getIntKey()))
-                .forEach(e -> scoresMap.addTo(e.getIntKey(), e.getDoubleValue()));
-
-        return scoresMap;
+        super(data, neighborhood, q, min);
     }
 
 }
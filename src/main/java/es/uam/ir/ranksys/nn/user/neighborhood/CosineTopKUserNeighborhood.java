@@ -0,0 +1,257 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user.neighborhood;
+
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import it.unimi.dsi.fastutil.doubles.DoubleIterator;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import static java.lang.Math.pow;
+import java.util.stream.IntStream;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Top k neighbors of every user by vector cosine similarity, computed at once
+ * for all the users. The similarity of users u and v is
+ * (u · v) / (|u|^(2 alpha) |v|^(2 (1 - alpha))), as in RankSys'
+ * VectorCosineSimilarity, and the neighbors of each user are the k users
+ * with the largest non-zero similarity, sorted by
+ * PrefixUserNeighborhood.NEIGHBOR_ORDER.
+ *
+ * <p>
+ * The products of a user with all the others are accumulated through the
+ * item-major index of the data, in the same order as VectorCosineSimilarity,
+ * so similarities are exactly the same. Users are processed in parallel in
+ * blocks of consecutive users; each thread reuses a dense product buffer with
+ * the list of touched users and a bounded heap for the top k selection, so no
+ * memory is allocated per user other than the resulting lists.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ */
+public class CosineTopKUserNeighborhood<U> extends UserNeighborhood<U> {
+
+    private static final int BLOCK_SIZE = 256;
+
+    private final int[][] neighborIdxs;
+    private final double[][] neighborSims;
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     * @param alpha asymmetry of the similarity, 0.5 for the standard cosine
+     * @param k maximum number of neighbors of each user
+     */
+    public CosineTopKUserNeighborhood(FastPreferenceData<U, ?> data, double alpha, int k) {
+        this(data, new int[data.numUsers()][], new double[data.numUsers()][]);
+        compute(data, alpha, k, neighborIdxs, neighborSims);
+    }
+
+    private CosineTopKUserNeighborhood(FastUserIndex<U> users, int[][] neighborIdxs, double[][] neighborSims) {
+        super(users, idx -> {
+            int[] idxs = neighborIdxs[idx];
+            double[] sims = neighborSims[idx];
+            return IntStream.range(0, idxs.length).mapToObj(j -> new Tuple2id(idxs[j], sims[j]));
+        });
+        this.neighborIdxs = neighborIdxs;
+        this.neighborSims = neighborSims;
+    }
+
+    /**
+     * Indices of the neighbors of a user, sorted by
+     * PrefixUserNeighborhood.NEIGHBOR_ORDER. The array is not copied.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    public int[] getNeighborIdxs(int uidx) {
+        return neighborIdxs[uidx];
+    }
+
+    /**
+     * Similarities of the neighbors of a user, in the order of
+     * getNeighborIdxs. The array is not copied.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    public double[] getNeighborSims(int uidx) {
+        return neighborSims[uidx];
+    }
+
+    private static void compute(FastPreferenceData<?, ?> data, double alpha, int k, int[][] neighborIdxs, double[][] neighborSims) {
+        int nUsers = data.numUsers();
+
+        double[] normA = new double[nUsers];
+        double[] normB = new double[nUsers];
+        IntStream.range(0, nUsers).parallel().forEach(uidx -> {
+            double norm2 = 0;
+            DoubleIterator vs = data.getUidxVs(uidx);
+            while (vs.hasNext()) {
+                double v = vs.nextDouble();
+                norm2 += v * v;
+            }
+            normA[uidx] = pow(norm2, alpha);
+            normB[uidx] = pow(norm2, 1 - alpha);
+        });
+
+        ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(() -> new Buffers(nUsers, Math.min(k, nUsers)));
+        int nBlocks = (nUsers + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            Buffers buffer = buffers.get();
+            for (int uidx = block * BLOCK_SIZE; uidx < Math.min(nUsers, (block + 1) * BLOCK_SIZE); uidx++) {
+                buffer.accumulate(data, uidx);
+                buffer.select(uidx, normA[uidx], normB);
+                buffer.sort();
+                neighborIdxs[uidx] = buffer.idxs();
+                neighborSims[uidx] = buffer.sims();
+            }
+        });
+    }
+
+    /**
+     * Per-thread buffers: products of the current user with the others, the
+     * users touched, and a min-heap of the best neighbors found so far.
+     */
+    private static class Buffers {
+
+        private final double[] products;
+        private final int[] marks;
+        private final int[] touched;
+        private int nTouched;
+        private final int[] heapIdxs;
+        private final double[] heapSims;
+        private int heapSize;
+
+        Buffers(int nUsers, int k) {
+            this.products = new double[nUsers];
+            this.marks = new int[nUsers];
+            this.touched = new int[nUsers];
+            this.heapIdxs = new int[k];
+            this.heapSims = new double[k];
+        }
+
+        /**
+         * Accumulates the products of a user with all the users that share
+         * an item with it.
+         */
+        void accumulate(FastPreferenceData<?, ?> data, int uidx) {
+            int mark = uidx + 1;
+            nTouched = 0;
+            IntIterator iidxs = data.getUidxIidxs(uidx);
+            DoubleIterator uvs = data.getUidxVs(uidx);
+            while (iidxs.hasNext()) {
+                int iidx = iidxs.nextInt();
+                double uv = uvs.nextDouble();
+                IntIterator vidxs = data.getIidxUidxs(iidx);
+                DoubleIterator vvs = data.getIidxVs(iidx);
+                while (vidxs.hasNext()) {
+                    int vidx = vidxs.nextInt();
+                    if (marks[vidx] != mark) {
+                        marks[vidx] = mark;
+                        touched[nTouched++] = vidx;
+                    }
+                    products[vidx] += uv * vvs.nextDouble();
+                }
+            }
+        }
+
+        /**
+         * Selects the top neighbors among the touched users, and clears the
+         * products.
+         */
+        void select(int uidx, double normA, double[] normB) {
+            heapSize = 0;
+            for (int t = 0; t < nTouched; t++) {
+                int vidx = touched[t];
+                double product = products[vidx];
+                products[vidx] = 0;
+                if (vidx == uidx || product == 0) {
+                    continue;
+                }
+                offer(vidx, product / (normA * normB[vidx]));
+            }
+        }
+
+        private void offer(int vidx, double sim) {
+            if (heapSize < heapIdxs.length) {
+                int i = heapSize++;
+                while (i > 0 && less(vidx, sim, heapIdxs[(i - 1) / 2], heapSims[(i - 1) / 2])) {
+                    heapIdxs[i] = heapIdxs[(i - 1) / 2];
+                    heapSims[i] = heapSims[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heapIdxs[i] = vidx;
+                heapSims[i] = sim;
+            } else if (heapSize > 0 && less(heapIdxs[0], heapSims[0], vidx, sim)) {
+                siftDown(vidx, sim, heapSize);
+            }
+        }
+
+        /**
+         * Places an element at the root of the heap of the given size and
+         * sifts it down.
+         */
+        private void siftDown(int vidx, double sim, int size) {
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && less(heapIdxs[child + 1], heapSims[child + 1], heapIdxs[child], heapSims[child])) {
+                    child++;
+                }
+                if (!less(heapIdxs[child], heapSims[child], vidx, sim)) {
+                    break;
+                }
+                heapIdxs[i] = heapIdxs[child];
+                heapSims[i] = heapSims[child];
+                i = child;
+            }
+            heapIdxs[i] = vidx;
+            heapSims[i] = sim;
+        }
+
+        /**
+         * Order of the top k selection: similarity, then index.
+         */
+        private static boolean less(int idx1, double sim1, int idx2, double sim2) {
+            int c = Double.compare(sim1, sim2);
+            return c < 0 || (c == 0 && idx1 < idx2);
+        }
+
+        /**
+         * Sorts the heap in place by decreasing order, popping the minimum to
+         * the end of the heap arrays.
+         */
+        void sort() {
+            for (int size = heapSize - 1; size > 0; size--) {
+                int idx = heapIdxs[size];
+                double sim = heapSims[size];
+                heapIdxs[size] = heapIdxs[0];
+                heapSims[size] = heapSims[0];
+                siftDown(idx, sim, size);
+            }
+        }
+
+        int[] idxs() {
+            int[] idxs = new int[heapSize];
+            System.arraycopy(heapIdxs, 0, idxs, 0, heapSize);
+            return idxs;
+        }
+
+        double[] sims() {
+            double[] sims = new double[heapSize];
+            System.arraycopy(heapSims, 0, sims, 0, heapSize);
+            return sims;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.nn.user.neighborhood;
+
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import java.util.Comparator;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Top k neighbors of each user, read as a prefix of a neighborhood of a
+ * larger size whose neighbors are sorted by decreasing similarity. A single
+ * neighborhood of the largest k can so serve the neighborhoods of all the
+ * smaller ones.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ */
+public class PrefixUserNeighborhood<U> extends UserNeighborhood<U> {
+
+    /**
+     * Order of the neighbors: decreasing similarity, and decreasing index for
+     * equal similarities, which is the order in which a top-k selection
+     * prefers them.
+     */
+    public static final Comparator<Tuple2id> NEIGHBOR_ORDER = Comparator
+            .comparingDouble((Tuple2id vs) -> vs.v2)
+            .thenComparingInt(vs -> vs.v1)
+            .reversed();
+
+    /**
+     * Constructor.
+     *
+     * @param neighborhood neighborhood with the neighbors of each user sorted
+     * by NEIGHBOR_ORDER
+     * @param k maximum number of neighbors
+     */
+    public PrefixUserNeighborhood(UserNeighborhood<U> neighborhood, int k) {
+        super(neighborhood, uidx -> neighborhood.getNeighbors(uidx).limit(k));
+    }
+}
@@ -0,0 +1,33 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+
+/**
+ * Recommender that scores an explicit list of candidate items, instead of
+ * scoring the whole catalog and discarding the items rejected by a filter.
+ * The recommendation is the same as that of a filter accepting only the
+ * candidates.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public interface CandidateRecommender {
+
+    /**
+     * Recommendation of the top items among a list of candidates.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param candidates sorted indices of the candidate items
+     * @return
+     */
+    FastRecommendation getRecommendation(int uidx, int maxLength, int[] candidates);
+}
@@ -0,0 +1,316 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Selection of the top scored items for a recommendation, in a bounded
+ * min-heap of primitive arrays. Items are ordered by score, and ties are
+ * broken by a secondary integer key, the item index by default, as in
+ * RankSys' IntDoubleTopN, so the selected items are the same as those of
+ * FastRankingRecommender. Each thread reuses its own selector, so no memory
+ * is allocated per recommendation other than the resulting list, and none
+ * at all when the indices of the selected items are written into an array of
+ * the caller. As in RankSys, a maximum length of 0 means no limit.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class TopNSelector {
+
+    private static final ThreadLocal<TopNSelector> SELECTORS = ThreadLocal.withInitial(TopNSelector::new);
+
+    private int[] iidxs = new int[16];
+    private double[] values = new double[16];
+    private int[] keys = new int[16];
+    private int capacity;
+    private int size;
+
+    /**
+     * Empty selector of the current thread.
+     *
+     * @param maxLength maximum number of items selected, or 0 for no limit
+     * @return
+     */
+    public static TopNSelector get(int maxLength) {
+        TopNSelector selector = SELECTORS.get();
+        selector.reset(maxLength);
+        return selector;
+    }
+
+    /**
+     * Recommendation of the top scored items of a map that pass a filter.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param scoresMap scores of the items
+     * @param filter items that can be recommended
+     * @return
+     */
+    public static FastRecommendation select(int uidx, int maxLength, Int2DoubleMap scoresMap, IntPredicate filter) {
+        return offer(maxLength, scoresMap, filter).toRecommendation(uidx);
+    }
+
+    /**
+     * Indices of the top scored items of a map that pass a filter, written
+     * into an array by decreasing score.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param scoresMap scores of the items
+     * @param filter items that can be recommended
+     * @param iidxs array with room for the selected items
+     * @return number of items selected
+     */
+    public static int select(int maxLength, Int2DoubleMap scoresMap, IntPredicate filter, int[] iidxs) {
+        return offer(maxLength, scoresMap, filter).toIidxs(iidxs);
+    }
+
+    private static TopNSelector offer(int maxLength, Int2DoubleMap scoresMap, IntPredicate filter) {
+        TopNSelector selector = get(maxLength);
+        ObjectIterator<Int2DoubleMap.Entry> entries = scoresMap.int2DoubleEntrySet() instanceof Int2DoubleMap.FastEntrySet
+                ? ((Int2DoubleMap.FastEntrySet) scoresMap.int2DoubleEntrySet()).fastIterator()
+                : scoresMap.int2DoubleEntrySet().iterator();
+        while (entries.hasNext()) {
+            Int2DoubleMap.Entry e = entries.next();
+            if (filter.test(e.getIntKey())) {
+                selector.add(e.getIntKey(), e.getDoubleValue());
+            }
+        }
+        return selector;
+    }
+
+    /**
+     * Recommendation of the first items of a ranking that pass a filter. No
+     * heap is needed since the ranking is already sorted, and the scan stops
+     * as soon as the recommendation is complete.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param rankedIidxs items sorted by decreasing score
+     * @param rankedValues scores of the sorted items
+     * @param filter items that can be recommended
+     * @return
+     */
+    public static FastRecommendation select(int uidx, int maxLength, int[] rankedIidxs, double[] rankedValues, IntPredicate filter) {
+        maxLength = maxLength == 0 ? rankedIidxs.length : Math.min(maxLength, rankedIidxs.length);
+        List<Tuple2id> items = new ArrayList<>(maxLength);
+        for (int i = 0; i < rankedIidxs.length && items.size() < maxLength; i++) {
+            if (filter.test(rankedIidxs[i])) {
+                items.add(new Tuple2id(rankedIidxs[i], rankedValues[i]));
+            }
+        }
+        return new FastRecommendation(uidx, items);
+    }
+
+    /**
+     * Indices of the first items of a ranking that pass a filter, written
+     * into an array in the order of the ranking.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param rankedIidxs items sorted by decreasing score
+     * @param filter items that can be recommended
+     * @param iidxs array with room for the selected items
+     * @return number of items selected
+     */
+    public static int select(int maxLength, int[] rankedIidxs, IntPredicate filter, int[] iidxs) {
+        maxLength = maxLength == 0 ? rankedIidxs.length : Math.min(maxLength, rankedIidxs.length);
+        int length = 0;
+        for (int i = 0; i < rankedIidxs.length && length < maxLength; i++) {
+            if (filter.test(rankedIidxs[i])) {
+                iidxs[length++] = rankedIidxs[i];
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Recommendation of the first items of a ranking among a list of
+     * candidates, the same as the one of a filter accepting only the
+     * candidates. Candidates are selected by their position in the ranking.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param candidates indices of the candidate items
+     * @param ranks position of each item in the ranking, or -1 for the items
+     * out of the ranking
+     * @param rankedValues scores of the sorted items
+     * @return
+     */
+    public static FastRecommendation select(int uidx, int maxLength, int[] candidates, int[] ranks, double[] rankedValues) {
+        return offer(maxLength, candidates, ranks, rankedValues).toRecommendation(uidx);
+    }
+
+    /**
+     * Indices of the first items of a ranking among a list of candidates,
+     * written into an array in the order of the ranking.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param candidates indices of the candidate items
+     * @param ranks position of each item in the ranking, or -1 for the items
+     * out of the ranking
+     * @param rankedValues scores of the sorted items
+     * @param iidxs array with room for the selected items
+     * @return number of items selected
+     */
+    public static int select(int maxLength, int[] candidates, int[] ranks, double[] rankedValues, int[] iidxs) {
+        return offer(maxLength, candidates, ranks, rankedValues).toIidxs(iidxs);
+    }
+
+    private static TopNSelector offer(int maxLength, int[] candidates, int[] ranks, double[] rankedValues) {
+        TopNSelector selector = get(maxLength);
+        for (int iidx : candidates) {
+            int rank = ranks[iidx];
+            if (rank >= 0) {
+                selector.add(iidx, rankedValues[rank], -rank);
+            }
+        }
+        return selector;
+    }
+
+    private void reset(int maxLength) {
+        capacity = maxLength == 0 ? Integer.MAX_VALUE : Math.max(maxLength, 0);
+        size = 0;
+    }
+
+    /**
+     * Offers an item, with its index as tie-breaking key.
+     *
+     * @param iidx index of the item
+     * @param value score of the item
+     */
+    public void add(int iidx, double value) {
+        add(iidx, value, iidx);
+    }
+
+    /**
+     * Offers an item. Among items with the same score, those with a larger
+     * key are preferred.
+     *
+     * @param iidx index of the item
+     * @param value score of the item
+     * @param key tie-breaking key
+     */
+    public void add(int iidx, double value, int key) {
+        if (size < capacity) {
+            if (size == iidxs.length) {
+                iidxs = Arrays.copyOf(iidxs, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+                keys = Arrays.copyOf(keys, 2 * size);
+            }
+            int i = size++;
+            while (i > 0 && less(value, key, (i - 1) / 2)) {
+                move((i - 1) / 2, i);
+                i = (i - 1) / 2;
+            }
+            set(i, iidx, value, key);
+        } else if (size > 0 && less(0, value, key)) {
+            siftDown(iidx, value, key, size);
+        }
+    }
+
+    /**
+     * Recommendation of the selected items, sorted by decreasing score. The
+     * selector is emptied.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    public FastRecommendation toRecommendation(int uidx) {
+        sort();
+        List<Tuple2id> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(new Tuple2id(iidxs[i], values[i]));
+        }
+        size = 0;
+        return new FastRecommendation(uidx, items);
+    }
+
+    /**
+     * Writes the indices of the selected items into an array, sorted by
+     * decreasing score. The selector is emptied.
+     *
+     * @param iidxs array with room for the selected items
+     * @return number of items selected
+     */
+    public int toIidxs(int[] iidxs) {
+        sort();
+        int length = size;
+        System.arraycopy(this.iidxs, 0, iidxs, 0, length);
+        size = 0;
+        return length;
+    }
+
+    /**
+     * Sorts the heap in place by decreasing order, popping the minimum to
+     * the end of the heap arrays.
+     */
+    private void sort() {
+        for (int n = size - 1; n > 0; n--) {
+            int iidx = iidxs[n];
+            double value = values[n];
+            int key = keys[n];
+            move(0, n);
+            siftDown(iidx, value, key, n);
+        }
+    }
+
+    /**
+     * Places an element at the root of the heap of the given size and sifts
+     * it down.
+     */
+    private void siftDown(int iidx, double value, int key, int n) {
+        int i = 0;
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && less(child + 1, values[child], keys[child])) {
+                child++;
+            }
+            if (!less(child, value, key)) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        set(i, iidx, value, key);
+    }
+
+    /**
+     * Whether the element at position i of the heap goes before the given
+     * one in the order of the selection: score, then key.
+     */
+    private boolean less(int i, double value, int key) {
+        int c = Double.compare(values[i], value);
+        return c < 0 || (c == 0 && keys[i] < key);
+    }
+
+    private boolean less(double value, int key, int i) {
+        int c = Double.compare(value, values[i]);
+        return c < 0 || (c == 0 && key < keys[i]);
+    }
+
+    private void move(int from, int to) {
+        iidxs[to] = iidxs[from];
+        values[to] = values[from];
+        keys[to] = keys[from];
+    }
+
+    private void set(int i, int iidx, double value, int key) {
+        iidxs[i] = iidx;
+        values[i] = value;
+        keys[i] = key;
+    }
+}
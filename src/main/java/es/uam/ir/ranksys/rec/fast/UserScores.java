@@ -0,0 +1,220 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.rec.fast.FastRankingRecommender;
+import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Scores of a recommender for a user, computed once and ranked under any
+ * number of item filters. Ranking recommenders score the user a single time,
+ * and each filter only selects the top items among the scored ones, which
+ * gives the same recommendation as calling the recommender with the filter.
+ * Recommenders that keep scores of their own, such as the kNN accumulators,
+ * are selected from them without building the map of scores. Other
+ * recommenders are called for each filter. Recommendations can also be
+ * restricted to an explicit list of candidate items, which candidate
+ * recommenders score without going through the whole catalog, and be
+ * written as item indices into an array of the caller, which ranking
+ * recommenders and those with scores of their own do without building the
+ * list of the recommendation.
+ *
+ * <p>
+ * As in RankSys, a maximum length of 0 means no limit.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public abstract class UserScores {
+
+    /**
+     * Scores of a user.
+     *
+     * @param recommender
+     * @param uidx index of the user
+     * @return
+     */
+    public static UserScores of(FastRecommender<?, ?> recommender, int uidx) {
+        if (recommender instanceof UserScoresRecommender) {
+            return ((UserScoresRecommender) recommender).getUserScores(uidx);
+        }
+        if (recommender instanceof FastRankingRecommender) {
+            return new Ranking(uidx, ((FastRankingRecommender<?, ?>) recommender).getScoresMap(uidx));
+        }
+        return new UserScores() {
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, IntPredicate filter) {
+                return recommender.getRecommendation(uidx, maxLength, filter);
+            }
+
+            @Override
+            public FastRecommendation getRecommendation(int maxLength, int[] candidates) {
+                if (recommender instanceof CandidateRecommender) {
+                    return ((CandidateRecommender) recommender).getRecommendation(uidx, maxLength, candidates);
+                }
+                return recommender.getRecommendation(uidx, maxLength, iidx -> Arrays.binarySearch(candidates, iidx) >= 0);
+            }
+        };
+    }
+
+    /**
+     * Scores of a fixed ranking of the items, the same for all users, kept
+     * in primitive arrays.
+     *
+     * @param uidx index of the user
+     * @param rankedIidxs items sorted by decreasing score
+     * @param rankedValues scores of the sorted items
+     * @param ranks position of each item in the ranking, or -1 for the items
+     * out of the ranking
+     * @return
+     */
+    public static UserScores of(int uidx, int[] rankedIidxs, double[] rankedValues, int[] ranks) {
+        return new SortedRanking(uidx, rankedIidxs, rankedValues, ranks);
+    }
+
+    /**
+     * Recommendation of the items that pass a filter.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param filter items that can be recommended
+     * @return
+     */
+    public abstract FastRecommendation getRecommendation(int maxLength, IntPredicate filter);
+
+    /**
+     * Recommendation of the items in a list of candidates, the same as the
+     * recommendation with a filter accepting only the candidates.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param candidates sorted indices of the candidate items
+     * @return
+     */
+    public abstract FastRecommendation getRecommendation(int maxLength, int[] candidates);
+
+    /**
+     * Indices of the items of the recommendation of a filter, written into
+     * an array.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param filter items that can be recommended
+     * @param iidxs array with room for the recommendation
+     * @return length of the recommendation
+     */
+    public int select(int maxLength, IntPredicate filter, int[] iidxs) {
+        return toIidxs(getRecommendation(maxLength, filter), iidxs);
+    }
+
+    /**
+     * Indices of the items of the recommendation of a list of candidates,
+     * written into an array.
+     *
+     * @param maxLength maximum length of the recommendation
+     * @param candidates sorted indices of the candidate items
+     * @param iidxs array with room for the recommendation
+     * @return length of the recommendation
+     */
+    public int select(int maxLength, int[] candidates, int[] iidxs) {
+        return toIidxs(getRecommendation(maxLength, candidates), iidxs);
+    }
+
+    private static int toIidxs(FastRecommendation recommendation, int[] iidxs) {
+        int length = 0;
+        for (Tuple2id item : recommendation.getIidxs()) {
+            iidxs[length++] = item.v1;
+        }
+        return length;
+    }
+
+    private static class Ranking extends UserScores {
+
+        private final int uidx;
+        private final Int2DoubleMap scoresMap;
+
+        Ranking(int uidx, Int2DoubleMap scoresMap) {
+            this.uidx = uidx;
+            this.scoresMap = scoresMap;
+        }
+
+        @Override
+        public FastRecommendation getRecommendation(int maxLength, IntPredicate filter) {
+            return TopNSelector.select(uidx, maxLength, scoresMap, filter);
+        }
+
+        @Override
+        public FastRecommendation getRecommendation(int maxLength, int[] candidates) {
+            if (candidates.length >= scoresMap.size()) {
+                return TopNSelector.select(uidx, maxLength, scoresMap, iidx -> Arrays.binarySearch(candidates, iidx) >= 0);
+            }
+            return offer(maxLength, candidates).toRecommendation(uidx);
+        }
+
+        @Override
+        public int select(int maxLength, IntPredicate filter, int[] iidxs) {
+            return TopNSelector.select(maxLength, scoresMap, filter, iidxs);
+        }
+
+        @Override
+        public int select(int maxLength, int[] candidates, int[] iidxs) {
+            if (candidates.length >= scoresMap.size()) {
+                return TopNSelector.select(maxLength, scoresMap, iidx -> Arrays.binarySearch(candidates, iidx) >= 0, iidxs);
+            }
+            return offer(maxLength, candidates).toIidxs(iidxs);
+        }
+
+        private TopNSelector offer(int maxLength, int[] candidates) {
+            TopNSelector selector = TopNSelector.get(maxLength);
+            for (int iidx : candidates) {
+                if (scoresMap.containsKey(iidx)) {
+                    selector.add(iidx, scoresMap.get(iidx));
+                }
+            }
+            return selector;
+        }
+    }
+
+    private static class SortedRanking extends UserScores {
+
+        private final int uidx;
+        private final int[] rankedIidxs;
+        private final double[] rankedValues;
+        private final int[] ranks;
+
+        SortedRanking(int uidx, int[] rankedIidxs, double[] rankedValues, int[] ranks) {
+            this.uidx = uidx;
+            this.rankedIidxs = rankedIidxs;
+            this.rankedValues = rankedValues;
+            this.ranks = ranks;
+        }
+
+        @Override
+        public FastRecommendation getRecommendation(int maxLength, IntPredicate filter) {
+            return TopNSelector.select(uidx, maxLength, rankedIidxs, rankedValues, filter);
+        }
+
+        @Override
+        public FastRecommendation getRecommendation(int maxLength, int[] candidates) {
+            return TopNSelector.select(uidx, maxLength, candidates, ranks, rankedValues);
+        }
+
+        @Override
+        public int select(int maxLength, IntPredicate filter, int[] iidxs) {
+            return TopNSelector.select(maxLength, rankedIidxs, filter, iidxs);
+        }
+
+        @Override
+        public int select(int maxLength, int[] candidates, int[] iidxs) {
+            return TopNSelector.select(maxLength, candidates, ranks, rankedValues, iidxs);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast;
+
+/**
+ * Recommender that scores a user into scores of its own, from which the
+ * recommendations of any number of filters or lists of candidates are
+ * selected, instead of building the map of scores of
+ * FastRankingRecommender.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public interface UserScoresRecommender {
+
+    /**
+     * Scores of a user. They may be kept in buffers of the current thread,
+     * and so be valid only until the recommender is called again from the
+     * same thread.
+     *
+     * @param uidx index of the user
+     * @return
+     */
+    UserScores getUserScores(int uidx);
+}
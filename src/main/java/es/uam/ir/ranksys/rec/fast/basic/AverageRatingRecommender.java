@@ -11,13 +11,17 @@ package es.uam.ir.ranksys.rec.fast.basic;
 import es.uam.eps.ir.ranksys.fast.FastRecommendation;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
 import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.CandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
+import es.uam.ir.ranksys.rec.fast.UserScores;
+import es.uam.ir.ranksys.rec.fast.UserScoresRecommender;
+import java.util.Arrays;
 import static java.util.Comparator.comparingDouble;
 import java.util.List;
 import java.util.function.IntPredicate;
 import static java.util.stream.Collectors.toList;
 import org.ranksys.core.util.tuples.Tuple2id;
 import static org.ranksys.core.util.tuples.Tuples.tuple;
-import static java.lang.Math.min;
 
 /**
  * Average rating recommender. Non-personalized recommender that returns the
@@ -30,9 +34,11 @@ import static java.lang.Math.min;
  * @param <U> type of the users
  * @param <I> type of the items
  */
-public class AverageRatingRecommender<U, I> extends AbstractFastRecommender<U, I> {
+public class AverageRatingRecommender<U, I> extends AbstractFastRecommender<U, I> implements CandidateRecommender, UserScoresRecommender {
 
-    private final List<Tuple2id> popList;
+    private final int[] rankedIidxs;
+    private final double[] rankedValues;
+    private final int[] ranks;
 
     /**
      * Constructor.
@@ -46,20 +52,31 @@ public class AverageRatingRecommender<U, I> extends AbstractFastRecommender<U, I
 
         double p = data.getAllUsers().mapToDouble(user -> data.getUserPreferences(user).filter(up -> up.v2 >= threshold).count()).sum() / data.numPreferences();
         double mu = 1;
-        popList = data.getIidxWithPreferences()
+        List<Tuple2id> popList = data.getIidxWithPreferences()
                 .mapToObj(iidx -> tuple(iidx, (data.getIidxPreferences(iidx).filter(ip -> ip.v2 >= threshold).count() + mu * p) * 1.0 / (data.numUsers(iidx) + mu)))
                 .sorted(comparingDouble(Tuple2id::v2).reversed())
                 .collect(toList());
+        rankedIidxs = popList.stream().mapToInt(Tuple2id::v1).toArray();
+        rankedValues = popList.stream().mapToDouble(Tuple2id::v2).toArray();
+        ranks = new int[data.numItems()];
+        Arrays.fill(ranks, -1);
+        for (int rank = 0; rank < rankedIidxs.length; rank++) {
+            ranks[rankedIidxs[rank]] = rank;
+        }
     }
 
     @Override
     public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        return TopNSelector.select(uidx, maxLength, rankedIidxs, rankedValues, filter);
+    }
 
-        List<Tuple2id> items = popList.stream()
-                .filter(is -> filter.test(is.v1))
-                .limit(min(maxLength, popList.size()))
-                .collect(toList());
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, int[] candidates) {
+        return TopNSelector.select(uidx, maxLength, candidates, ranks, rankedValues);
+    }
 
-        return new FastRecommendation(uidx, items);
+    @Override
+    public UserScores getUserScores(int uidx) {
+        return UserScores.of(uidx, rankedIidxs, rankedValues, ranks);
     }
 }
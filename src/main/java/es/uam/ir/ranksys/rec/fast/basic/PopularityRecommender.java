@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.fast.basic;
+
+import es.uam.eps.ir.ranksys.fast.FastRecommendation;
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.CandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
+import es.uam.ir.ranksys.rec.fast.UserScores;
+import es.uam.ir.ranksys.rec.fast.UserScoresRecommender;
+import java.util.Arrays;
+import static java.util.Comparator.comparingDouble;
+import java.util.List;
+import java.util.function.IntPredicate;
+import static java.util.stream.Collectors.toList;
+import org.ranksys.core.util.tuples.Tuple2id;
+import static org.ranksys.core.util.tuples.Tuples.tuple;
+
+/**
+ * Popularity-based recommender. Non-personalized recommender that returns the
+ * items with the largest number of ratings, as RankSys' PopularityRecommender,
+ * with the ranking kept in primitive arrays.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ * @param <I> type of the items
+ */
+public class PopularityRecommender<U, I> extends AbstractFastRecommender<U, I> implements CandidateRecommender, UserScoresRecommender {
+
+    private final int[] rankedIidxs;
+    private final double[] rankedValues;
+    private final int[] ranks;
+
+    /**
+     * Constructor.
+     *
+     * @param data preference data
+     */
+    public PopularityRecommender(FastPreferenceData<U, I> data) {
+        super(data, data);
+
+        List<Tuple2id> popList = data.getIidxWithPreferences()
+                .mapToObj(iidx -> tuple(iidx, (double) data.numUsers(iidx)))
+                .sorted(comparingDouble(Tuple2id::v2).reversed())
+                .collect(toList());
+        rankedIidxs = popList.stream().mapToInt(Tuple2id::v1).toArray();
+        rankedValues = popList.stream().mapToDouble(Tuple2id::v2).toArray();
+        ranks = new int[data.numItems()];
+        Arrays.fill(ranks, -1);
+        for (int rank = 0; rank < rankedIidxs.length; rank++) {
+            ranks[rankedIidxs[rank]] = rank;
+        }
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, IntPredicate filter) {
+        return TopNSelector.select(uidx, maxLength, rankedIidxs, rankedValues, filter);
+    }
+
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, int[] candidates) {
+        return TopNSelector.select(uidx, maxLength, candidates, ranks, rankedValues);
+    }
+
+    @Override
+    public UserScores getUserScores(int uidx) {
+        return UserScores.of(uidx, rankedIidxs, rankedValues, ranks);
+    }
+}
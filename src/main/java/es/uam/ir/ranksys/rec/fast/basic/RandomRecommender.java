@@ -13,12 +13,14 @@ import es.uam.eps.ir.ranksys.fast.FastRecommendation;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.rec.fast.AbstractFastRecommender;
+import es.uam.ir.ranksys.rec.fast.CandidateRecommender;
+import es.uam.ir.ranksys.rec.fast.TopNSelector;
 import static java.lang.Double.NaN;
+import es.uam.ir.util.RandomSource;
 import java.util.ArrayList;
 import java.util.Collections;
-import static java.util.Collections.shuffle;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.function.IntPredicate;
 import static java.util.stream.Collectors.toList;
 import java.util.stream.IntStream;
@@ -28,7 +30,9 @@ import org.ranksys.core.util.tuples.Tuple2od;
 
 /**
  * Random recommender. It provides non-personalized recommendations without by
- * extracting a sequence of a shuffled list of the items.
+ * extracting a sequence of a shuffled list of the items. Random numbers are
+ * drawn from a generator per user, so recommendations do not depend on the
+ * order or the threads in which users are processed.
  *
  * @author Rocío Cañamares
  * @author Pablo Castells
@@ -36,10 +40,11 @@ import org.ranksys.core.util.tuples.Tuple2od;
  * @param <U> type of the users
  * @param <I> type of the items
  */
-public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
+public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> implements CandidateRecommender {
 
-    private final static Random random = new Random();
+    private final RandomSource random;
     private final List<Tuple2id> randomList;
+    private final int[] positions;
 
     /**
      * Constructor.
@@ -48,13 +53,56 @@ public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
      * @param iIndex fast item index
      */
     public RandomRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex) {
+        this(uIndex, iIndex, new RandomSource());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uIndex fast user index
+     * @param iIndex fast item index
+     * @param random source of the random generators
+     */
+    public RandomRecommender(FastUserIndex<U> uIndex, FastItemIndex<I> iIndex, RandomSource random) {
         super(uIndex, iIndex);
+        this.random = random;
 
         randomList = iIndex.getAllIidx()
                 .mapToObj(iidx -> new Tuple2id(iidx, Double.NaN))
                 .collect(toList());
 
-        shuffle(randomList, random);
+        shuffle(randomList, random.get());
+
+        positions = new int[iIndex.numItems()];
+        for (int j = 0; j < randomList.size(); j++) {
+            positions[randomList.get(j).v1] = j;
+        }
+    }
+
+    private RandomRecommender(RandomRecommender<U, I> recommender, RandomSource random) {
+        super(recommender.uIndex, recommender.iIndex);
+        this.random = random;
+        this.randomList = recommender.randomList;
+        this.positions = recommender.positions;
+    }
+
+    /**
+     * Recommender over the same shuffled list of items, that draws the start
+     * position of each user from a source split by the given keys, so that
+     * independent recommendations (such as those of different target sizes)
+     * do not start at the same position.
+     *
+     * @param keys
+     * @return
+     */
+    public RandomRecommender<U, I> split(long... keys) {
+        return new RandomRecommender<>(this, random.split(keys));
+    }
+
+    private static <T> void shuffle(List<T> list, SplittableRandom rnd) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            Collections.swap(list, i, rnd.nextInt(i + 1));
+        }
     }
 
     @Override
@@ -64,7 +112,7 @@ public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
         }
 
         List<Tuple2id> recommended = new ArrayList<>();
-        int s = random.nextInt(randomList.size());
+        int s = random.get(uidx).nextInt(randomList.size());
         int j = s;
         for (int i = 0; i < maxLength; i++) {
             Tuple2id iv = randomList.get(j);
@@ -84,10 +132,35 @@ public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
         return new FastRecommendation(uidx, recommended);
     }
 
+    /**
+     * Recommendation of the candidates that come first in the shuffled list
+     * starting at the random position of the user, the same as the
+     * recommendation with a filter accepting only the candidates.
+     *
+     * @param uidx index of the user
+     * @param maxLength maximum length of the recommendation
+     * @param candidates indices of the candidate items
+     * @return
+     */
+    @Override
+    public FastRecommendation getRecommendation(int uidx, int maxLength, int[] candidates) {
+        if (maxLength == 0) {
+            maxLength = randomList.size();
+        }
+
+        int s = random.get(uidx).nextInt(randomList.size());
+        TopNSelector selector = TopNSelector.get(maxLength);
+        for (int iidx : candidates) {
+            int distance = Math.floorMod(positions[iidx] - s, randomList.size());
+            selector.add(iidx, NaN, -distance);
+        }
+        return selector.toRecommendation(uidx);
+    }
+
     @Override
     public Recommendation<U, I> getRecommendation(U u, Stream<I> candidates) {
         List<Tuple2od<I>> items = candidates.map(i -> new Tuple2od<>(i, NaN)).collect(toList());
-        Collections.shuffle(items, random);
+        shuffle(items, random.get(user2uidx(u)));
 
         return new Recommendation<>(u, items);
     }
@@ -95,7 +168,7 @@ public class RandomRecommender<U, I> extends AbstractFastRecommender<U, I> {
     @Override
     public FastRecommendation getRecommendation(int uidx, IntStream candidates) {
         List<Tuple2id> items = candidates.mapToObj(iidx -> new Tuple2id(iidx, NaN)).collect(toList());
-        Collections.shuffle(items, random);
+        shuffle(items, random.get(uidx));
 
         return new FastRecommendation(uidx, items);
     }
@@ -11,23 +11,26 @@ package es.uam.ir.ranksys.rec.runner.fast;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
+import es.uam.ir.util.IdxSet;
+import es.uam.ir.util.RandomSource;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.function.Function;
 import java.util.function.IntFunction;
 import java.util.function.IntPredicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.ranksys.formats.parsing.Parser;
 
 /**
@@ -38,8 +41,6 @@ import org.ranksys.formats.parsing.Parser;
  */
 public class FastSamplers {
 
-    static Random rnd = new Random();
-
     /**
      * 
      * @param <U>
@@ -82,7 +83,7 @@ public class FastSamplers {
             Parser<I> iParser) {
         BufferedReader reader = null;
         try {
-            Map<U, IntSet> mapSets = userIndex.getAllUsers().collect(Collectors.toMap(user -> user, user -> new IntOpenHashSet()));
+            Map<U, IntArrayList> mapLists = userIndex.getAllUsers().collect(Collectors.toMap(user -> user, user -> new IntArrayList()));
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(dataPath)));
             String line;
             U u = null;
@@ -91,14 +92,14 @@ public class FastSamplers {
                 if (line.endsWith(":")) {
                     u = uParser.parse(line.replaceAll(":", ""));
                 } else {
-                    mapSets.get(u).add(itemIndex.item2iidx(iParser.parse(line)));
+                    mapLists.get(u).add(itemIndex.item2iidx(iParser.parse(line)));
                 }
             }
             reader.close();
-            return user -> {
-                IntSet set = mapSets.get(user);
-                return iidx -> set.contains(iidx);
-            };
+            Map<U, IdxSet> mapSets = mapLists.entrySet().stream().collect(Collectors.toMap(
+                    e -> e.getKey(),
+                    e -> IdxSet.of(e.getValue().elements(), e.getValue().size(), itemIndex.numItems())));
+            return user -> mapSets.get(user);
         } catch (IOException ex) {
             Logger.getLogger(FastSamplers.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -112,11 +113,12 @@ public class FastSamplers {
      * @param trainData
      * @param mapSets
      * @param n
+     * @param random source of the random generator of each user
      * @return 
      */
-    public static <U, I> Function<U, IntPredicate> uniform(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n) {
+    public static <U, I> Function<U, IntPredicate> uniform(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int n, RandomSource random) {
         IntFunction<Double> weight = iidx -> 1.0;
-        return sample(trainData, mapSets, n, weight);
+        return sample(trainData, mapSets, n, weight, random);
     }
 
     /**
@@ -127,56 +129,112 @@ public class FastSamplers {
      * @param mapSets
      * @param n
      * @param weight
+     * @param random source of the random generator of each user
      * @return 
      */
-    public static <U, I> Function<U, IntPredicate> sample(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n, IntFunction<Double> weight) {
-        Map<U, IntSet> mapKSets;
-        if (n >= trainData.numItems()) {
-            IntSet kSet = new IntOpenHashSet();
-            trainData.getAllIidx().filter(iidx -> weight.apply(iidx) > 0).forEach(kSet::add);
-            mapKSets = trainData.getAllUsers().parallel().collect(Collectors.toMap(user -> user, user -> kSet));
+    public static <U, I> Function<U, IntPredicate> sample(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int n, IntFunction<Double> weight, RandomSource random) {
+        int nItems = trainData.numItems();
+        if (n >= nItems) {
+            IdxSet kSet = IdxSet.of(nItems, iidx -> weight.apply(iidx) > 0);
+            return user -> {
+                IdxSet testSet = mapSets.get(user);
+                return iidx -> testSet.contains(iidx) || kSet.contains(iidx);
+            };
         } else {
-            mapKSets = trainData.getAllUsers().parallel().collect(Collectors.toMap(
-                    user -> user,
-                    user -> {
-                        IntSet testSet = mapSets.get(user);
-
-                        int nItems = trainData.numItems();
-                        double items[] = new double[nItems];
-                        double sum = trainData.getAllIidx()
-                        .filter(iidx -> !testSet.contains(iidx))
-                        .mapToDouble(iidx -> {
-                            items[iidx] = weight.apply(iidx);
-                            return items[iidx];
-                        }).sum();
-
-                        IntSet kSet = new IntOpenHashSet();
-                        for (int i = 0; i < n && sum > 0; i++) {
-                            double p = rnd.nextDouble() * sum;
-                            double acc = 0;
-
-                            int j = 0;
-                            while (acc < p) {
-                                acc += items[j];
-                                j++;
-                            }
-                            j--;
-                            kSet.add(j);
+            // The target set of each user (test items plus sampled items) is
+            // stored as a single set
+            Map<U, IdxSet> mapTargetSets = draw(trainData, mapSets, n, weight, random).entrySet().parallelStream().collect(Collectors.toMap(
+                    e -> e.getKey(),
+                    e -> IdxSet.of(IntStream.concat(mapSets.get(e.getKey()).stream(), Arrays.stream(e.getValue())).toArray(), nItems)));
 
-                            sum -= items[j];
-                            items[j] = 0;
-
-                        }
-                        return kSet;
-                    }));
+            return user -> mapTargetSets.get(user);
         }
+    }
 
-        return user -> {
-            IntSet testSet = mapSets.get(user);
-            IntSet kSet = mapKSets.get(user);
+    /**
+     * Nested uniform samples: for each user, a single random sequence of
+     * items is drawn, and the sample of each target size is a prefix of it.
+     *
+     * @param <U>
+     * @param <I>
+     * @param trainData
+     * @param mapSets
+     * @param maxN largest target size to be sampled
+     * @param random source of the random generator of each user
+     * @return 
+     */
+    public static <U, I> NestedSampler<U> nestedUniform(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int maxN, RandomSource random) {
+        IntFunction<Double> weight = iidx -> 1.0;
+        return nested(trainData, mapSets, maxN, weight, random);
+    }
 
-            return iidx -> testSet.contains(iidx) || kSet.contains(iidx);
-        };
+    /**
+     * Nested samples: for each user, a single sequence of items is drawn
+     * with probability proportional to their weight, and the sample of each
+     * target size is a prefix of it.
+     *
+     * @param <U>
+     * @param <I>
+     * @param trainData
+     * @param mapSets
+     * @param maxN largest target size to be sampled
+     * @param weight
+     * @param random source of the random generator of each user
+     * @return 
+     */
+    public static <U, I> NestedSampler<U> nested(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int maxN, IntFunction<Double> weight, RandomSource random) {
+        int nItems = trainData.numItems();
+        IdxSet allItems = IdxSet.of(nItems, iidx -> weight.apply(iidx) > 0);
+        return new NestedSampler<>(nItems, maxN, mapSets, allItems, draw(trainData, mapSets, maxN, weight, random));
+    }
+
+    /**
+     * Draws for each user a sequence of up to n distinct items not in the
+     * user's test set, each with a probability proportional to its weight
+     * among the remaining items.
+     */
+    private static <U, I> Map<U, int[]> draw(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int n, IntFunction<Double> weight, RandomSource random) {
+        int nItems = trainData.numItems();
+
+        // Item weights are stored once in a Fenwick tree; each thread works
+        // on its own copy, removing and restoring the items of each user
+        double[] weights = new double[nItems];
+        trainData.getAllIidx().forEach(iidx -> weights[iidx] = weight.apply(iidx));
+        ItemWeightTree tree = new ItemWeightTree(weights);
+        ThreadLocal<ItemWeightTree> threadTree = ThreadLocal.withInitial(tree::copy);
+
+        return trainData.getAllUsers().parallel().collect(Collectors.toMap(
+                user -> user,
+                user -> {
+                    IdxSet testSet = mapSets.get(user);
+                    ItemWeightTree userTree = threadTree.get();
+                    SplittableRandom rnd = random.get(trainData.user2uidx(user));
+
+                    testSet.forEach(iidx -> userTree.set(iidx, 0));
+                    int[] drawn = new int[Math.min(n, nItems)];
+                    int size = 0;
+                    int nFailures = 0;
+                    while (size < drawn.length && userTree.total() > 0) {
+                        int j = userTree.find(rnd.nextDouble() * userTree.total());
+                        if (j < 0) {
+                            // The sums drifted from the weights by rounding: rebuild them and draw again
+                            if (++nFailures > 2) {
+                                throw new IllegalStateException("Cannot draw item " + (size + 1) + " of the target sample of user " + user);
+                            }
+                            userTree.rebuild();
+                            continue;
+                        }
+                        nFailures = 0;
+                        drawn[size++] = j;
+                        userTree.set(j, 0);
+                    }
+
+                    testSet.forEach(iidx -> userTree.set(iidx, weights[iidx]));
+                    for (int i = 0; i < size; i++) {
+                        userTree.set(drawn[i], weights[drawn[i]]);
+                    }
+                    return size < drawn.length ? Arrays.copyOf(drawn, size) : drawn;
+                }));
     }
 
     /**
@@ -187,7 +245,7 @@ public class FastSamplers {
     public static class FastSamplersArgument<U, I> {
 
         public FastPreferenceData<U, I> trainData;
-        public Map<U, IntSet> mapSets;
+        public Map<U, IdxSet> mapSets;
         public int n;
 
         /**
@@ -196,7 +254,7 @@ public class FastSamplers {
          * @param mapSets
          * @param n 
          */
-        public FastSamplersArgument(FastPreferenceData<U, I> trainData, Map<U, IntSet> mapSets, int n) {
+        public FastSamplersArgument(FastPreferenceData<U, I> trainData, Map<U, IdxSet> mapSets, int n) {
             this.trainData = trainData;
             this.mapSets = mapSets;
             this.n = n;
@@ -210,16 +268,12 @@ public class FastSamplers {
      * @param testData
      * @return 
      */
-    public static <U, I> Map<U, IntSet> inTestForUser(FastPreferenceData<U, I> testData) {
-        Map<U, IntSet> mapSets = testData.getAllUsers().parallel().collect(Collectors.toMap(
+    public static <U, I> Map<U, IdxSet> inTestForUser(FastPreferenceData<U, I> testData) {
+        Map<U, IdxSet> mapSets = testData.getAllUsers().parallel().collect(Collectors.toMap(
                 user -> user,
-                user -> {
-                    IntSet set = new IntOpenHashSet();
-                    testData.getUidxPreferences(testData.user2uidx(user))
-                    .mapToInt(iv -> iv.v1)
-                    .forEach(set::add);
-                    return set;
-                }));
+                user -> IdxSet.of(testData.getUidxPreferences(testData.user2uidx(user))
+                        .mapToInt(iv -> iv.v1)
+                        .toArray(), testData.numItems())));
 
         return mapSets;
     }
@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import java.util.Arrays;
+
+/**
+ * Fenwick tree over item weights for sampling items proportionally to their
+ * weight in O(log N). Items can be removed and restored, so a copy of the
+ * tree can be reused across users: the test items and the sampled items of a
+ * user are removed, and restored once the sample is drawn. With non-integer
+ * weights, these updates accumulate rounding errors, which rebuild clears.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+class ItemWeightTree {
+
+    private final double[] weights;
+    private final double[] tree;
+    private final int topStep;
+    private double total;
+
+    /**
+     *
+     * @param weights weight of each item
+     */
+    ItemWeightTree(double[] weights) {
+        int n = weights.length;
+        this.weights = weights.clone();
+        this.tree = new double[n + 1];
+        this.topStep = n == 0 ? 0 : Integer.highestOneBit(n);
+        rebuild();
+    }
+
+    private ItemWeightTree(ItemWeightTree other) {
+        this.weights = other.weights.clone();
+        this.tree = other.tree.clone();
+        this.topStep = other.topStep;
+        this.total = other.total;
+    }
+
+    /**
+     * Independent copy of the tree.
+     *
+     * @return
+     */
+    ItemWeightTree copy() {
+        return new ItemWeightTree(this);
+    }
+
+    /**
+     * Sum of the weights of the items in the tree.
+     *
+     * @return
+     */
+    double total() {
+        return total;
+    }
+
+    /**
+     * Current weight of an item.
+     *
+     * @param iidx
+     * @return
+     */
+    double weight(int iidx) {
+        return weights[iidx];
+    }
+
+    /**
+     * Sets the weight of an item.
+     *
+     * @param iidx
+     * @param weight
+     */
+    void set(int iidx, double weight) {
+        double delta = weight - weights[iidx];
+        if (delta == 0) {
+            return;
+        }
+        weights[iidx] = weight;
+        total += delta;
+        for (int i = iidx + 1; i < tree.length; i += Integer.lowestOneBit(i)) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Recomputes the partial sums and the total from the current weights,
+     * discarding the rounding errors accumulated by set.
+     */
+    void rebuild() {
+        int n = weights.length;
+        Arrays.fill(tree, 0);
+        total = 0;
+        for (int i = 0; i < n; i++) {
+            tree[i + 1] += weights[i];
+            int parent = (i + 1) + Integer.lowestOneBit(i + 1);
+            if (parent <= n) {
+                tree[parent] += tree[i + 1];
+            }
+            total += weights[i];
+        }
+    }
+
+    /**
+     * Item at a position of the cumulative weight distribution, that is, the
+     * first item whose cumulative weight exceeds p.
+     *
+     * @param p value in [0, total())
+     * @return the item, or -1 if p is beyond the total weight
+     */
+    int find(double p) {
+        int pos = 0;
+        for (int step = topStep; step > 0; step >>= 1) {
+            int next = pos + step;
+            if (next < tree.length && tree[next] <= p) {
+                pos = next;
+                p -= tree[next];
+            }
+        }
+        return pos < weights.length && weights[pos] > 0 ? pos : -1;
+    }
+}
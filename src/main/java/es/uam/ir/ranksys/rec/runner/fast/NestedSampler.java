@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.ranksys.rec.runner.fast;
+
+import es.uam.ir.util.IdxSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Nested target samples. Each user has a single sequence of sampled items,
+ * and the sample of target size n is made of the user's test items and the
+ * first n items of the sequence, so that the sample of a target size
+ * contains the samples of all smaller sizes. Target sizes not smaller than
+ * the number of items take all the items.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ *
+ * @param <U> type of the users
+ */
+public class NestedSampler<U> {
+
+    private final int nItems;
+    private final int maxSize;
+    private final Map<U, IdxSet> mapSets;
+    private final IdxSet allItems;
+    private final Map<U, int[]> mapItems;
+    private final Map<U, int[]> mapRanks;
+
+    /**
+     *
+     * @param nItems number of items
+     * @param maxSize largest target size that can be sampled
+     * @param mapSets test items of each user
+     * @param allItems items in the sample of target sizes not smaller than
+     * the number of items
+     * @param mapDrawn sequence of sampled items of each user
+     */
+    NestedSampler(int nItems, int maxSize, Map<U, IdxSet> mapSets, IdxSet allItems, Map<U, int[]> mapDrawn) {
+        this.nItems = nItems;
+        this.maxSize = maxSize;
+        this.mapSets = mapSets;
+        this.allItems = allItems;
+
+        // Sampled items of each user are stored sorted, with the rank at which
+        // they were drawn, for binary search
+        Map<U, long[]> mapSorted = mapDrawn.entrySet().parallelStream().collect(Collectors.toMap(
+                e -> e.getKey(),
+                e -> {
+                    int[] drawn = e.getValue();
+                    long[] sorted = new long[drawn.length];
+                    for (int rank = 0; rank < drawn.length; rank++) {
+                        sorted[rank] = ((long) drawn[rank] << 32) | rank;
+                    }
+                    Arrays.sort(sorted);
+                    return sorted;
+                }));
+        this.mapItems = mapSorted.entrySet().stream().collect(Collectors.toMap(
+                e -> e.getKey(),
+                e -> Arrays.stream(e.getValue()).mapToInt(v -> (int) (v >>> 32)).toArray()));
+        this.mapRanks = mapSorted.entrySet().stream().collect(Collectors.toMap(
+                e -> e.getKey(),
+                e -> Arrays.stream(e.getValue()).mapToInt(v -> (int) v).toArray()));
+    }
+
+    /**
+     * Largest target size smaller than the number of items that can be
+     * sampled.
+     *
+     * @return
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sampler of a target size.
+     *
+     * @param n target size
+     * @return
+     */
+    public Function<U, IntPredicate> sampler(int n) {
+        if (n >= nItems) {
+            return user -> {
+                IdxSet testSet = mapSets.get(user);
+                return iidx -> testSet.contains(iidx) || allItems.contains(iidx);
+            };
+        }
+        if (n > maxSize) {
+            throw new IllegalArgumentException("target size " + n + " is larger than the nested sample size " + maxSize);
+        }
+
+        Map<U, IdxSet> mapTargetSets = mapItems.keySet().parallelStream().collect(Collectors.toMap(
+                user -> user,
+                user -> {
+                    IdxSet testSet = mapSets.get(user);
+                    int[] items = mapItems.get(user);
+                    int[] ranks = mapRanks.get(user);
+
+                    int[] targetSet = new int[testSet.size() + Math.min(n, items.length)];
+                    int[] size = {0};
+                    testSet.forEach(iidx -> targetSet[size[0]++] = iidx);
+                    for (int i = 0; i < items.length; i++) {
+                        if (ranks[i] < n) {
+                            targetSet[size[0]++] = items[i];
+                        }
+                    }
+                    return IdxSet.of(targetSet, nItems);
+                }));
+
+        return user -> mapTargetSets.get(user);
+    }
+
+    /**
+     * Rank at which an item enters the sample of a user, that is, the
+     * smallest target size whose sample contains the item. Test items are in
+     * all the samples and have rank 0.
+     *
+     * @param user
+     * @param iidx
+     * @return the rank, or -1 if the item is not sampled for the user up to
+     * the largest target size
+     */
+    public int rank(U user, int iidx) {
+        if (mapSets.get(user).contains(iidx)) {
+            return 0;
+        }
+        int i = Arrays.binarySearch(mapItems.get(user), iidx);
+        return i < 0 ? -1 : mapRanks.get(user)[i] + 1;
+    }
+}
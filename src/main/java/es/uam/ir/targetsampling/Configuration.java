@@ -31,8 +31,14 @@ public class Configuration {
 
     private final int nFolds;
     private final int[] targetSizes;
+    private final boolean nestedSampling;
     private final int cutoff;
     private Mode fillMode;
+    private final int nThreads;
+    private final Long randomSeed;
+    private final String modelsPath;
+    private final String evalsPath;
+    private final int nResamples;
     
     //Params when all recs
     private boolean allRecs;
@@ -81,6 +87,12 @@ public class Configuration {
             this.resultsPath = prop.getProperty("results.path");
             this.nFolds = Integer.valueOf(prop.getProperty("crossvalidation.nfolds"));
             this.cutoff = Integer.valueOf(prop.getProperty("evaluation.cutoff"));
+            this.nThreads = Integer.valueOf(prop.getProperty("execution.threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            this.nestedSampling = Boolean.valueOf(prop.getProperty("targetselection.nested", "false"));
+            this.randomSeed = prop.getProperty("random.seed") == null ? null : Long.valueOf(prop.getProperty("random.seed"));
+            this.modelsPath = prop.getProperty("models.path");
+            this.evalsPath = prop.getProperty("evals.path");
+            this.nResamples = Integer.valueOf(prop.getProperty("significance.resamples", "0"));
             switch (prop.getProperty("fill.mode")){
                 case "rnd":
                     this.fillMode = Mode.RND;
@@ -149,6 +161,10 @@ public class Configuration {
         return targetSizes;
     }
 
+    public boolean isNestedSampling() {
+        return nestedSampling;
+    }
+
     public int getCutoff() {
         return cutoff;
     }
@@ -157,6 +173,26 @@ public class Configuration {
         return fillMode;
     }
 
+    public int getNThreads() {
+        return nThreads;
+    }
+
+    public Long getRandomSeed() {
+        return randomSeed;
+    }
+
+    public String getModelsPath() {
+        return modelsPath;
+    }
+
+    public String getEvalsPath() {
+        return evalsPath;
+    }
+
+    public int getNResamples() {
+        return nResamples;
+    }
+
     public boolean isAllRecs() {
         return allRecs;
     }
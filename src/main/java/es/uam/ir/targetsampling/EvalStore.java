@@ -0,0 +1,208 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user values of the metrics of every (target size, recommender) pair of
+ * a cross-validation run, stored by columns of floats. There is a column per
+ * target size, recommender and metric, in which each fold takes a segment of
+ * numUsers positions; the users of a fold fill its segment from the start,
+ * in the order in which they are evaluated.
+ *
+ * <p>
+ * Columns are kept in memory, or in a file mapped into memory, so that runs
+ * with many recommenders do not need the values on the heap. Columns are
+ * read in place by the significance tests, without joining the folds first
+ * (see PairedStatistics).
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class EvalStore implements Closeable {
+
+    private final int[] targetSizes;
+    private final List<String> recNames;
+    private final String[] metrics;
+    private final int nFolds;
+    private final int numUsers;
+    private final Map<Integer, Integer> sizeIndex = new HashMap<>();
+    private final Map<String, Integer> recIndex = new HashMap<>();
+    private final Map<String, Integer> metricIndex = new HashMap<>();
+    private final int[] nUsersPerFold;
+    private final FloatBuffer[] columns;
+    private final RandomAccessFile file;
+
+    /**
+     * Store that keeps the values in memory.
+     *
+     * @param targetSizes
+     * @param recNames
+     * @param metrics
+     * @param nFolds number of folds
+     * @param numUsers largest number of users of a fold
+     * @throws IOException
+     */
+    public EvalStore(int[] targetSizes, List<String> recNames, String[] metrics, int nFolds, int numUsers) throws IOException {
+        this(targetSizes, recNames, metrics, nFolds, numUsers, null);
+    }
+
+    /**
+     *
+     * @param targetSizes
+     * @param recNames
+     * @param metrics
+     * @param nFolds number of folds
+     * @param numUsers largest number of users of a fold
+     * @param path file where the values are mapped, or null to keep them in
+     * memory
+     * @throws IOException
+     */
+    public EvalStore(int[] targetSizes, List<String> recNames, String[] metrics, int nFolds, int numUsers, String path) throws IOException {
+        this.targetSizes = targetSizes.clone();
+        this.recNames = new ArrayList<>(recNames);
+        this.metrics = metrics.clone();
+        this.nFolds = nFolds;
+        this.numUsers = numUsers;
+        for (int s = 0; s < targetSizes.length; s++) {
+            sizeIndex.put(targetSizes[s], s);
+        }
+        for (int r = 0; r < recNames.size(); r++) {
+            recIndex.put(recNames.get(r), r);
+        }
+        for (int j = 0; j < metrics.length; j++) {
+            metricIndex.put(metrics[j], j);
+        }
+        this.nUsersPerFold = new int[nFolds];
+
+        int length = nFolds * numUsers;
+        this.columns = new FloatBuffer[targetSizes.length * recNames.size() * metrics.length];
+        if (path == null) {
+            this.file = null;
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = FloatBuffer.allocate(length);
+            }
+        } else {
+            this.file = new RandomAccessFile(path, "rw");
+            long columnBytes = (long) length * Float.BYTES;
+            file.setLength(columns.length * columnBytes);
+            FileChannel channel = file.getChannel();
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = channel.map(MapMode.READ_WRITE, c * columnBytes, columnBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+    }
+
+    private int column(int targetSize, String recName, String metric) {
+        return (sizeIndex.get(targetSize) * recNames.size() + recIndex.get(recName)) * metrics.length + metricIndex.get(metric);
+    }
+
+    /**
+     * Stores the value of a metric for a user.
+     *
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @param fold fold, starting at 1
+     * @param i position of the user among the users of the fold
+     * @param value
+     */
+    public void put(int targetSize, String recName, String metric, int fold, int i, double value) {
+        columns[column(targetSize, recName, metric)].put(getOffset(fold) + i, (float) value);
+    }
+
+    /**
+     * Values of a metric for all the users, by fold segments.
+     *
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @return
+     */
+    public FloatBuffer getColumn(int targetSize, String recName, String metric) {
+        return columns[column(targetSize, recName, metric)];
+    }
+
+    /**
+     * Position of the first user of a fold in the columns.
+     *
+     * @param fold fold, starting at 1
+     * @return
+     */
+    public int getOffset(int fold) {
+        return (fold - 1) * numUsers;
+    }
+
+    /**
+     * Records the number of users evaluated in a fold.
+     *
+     * @param fold fold, starting at 1
+     * @param nUsers
+     */
+    public void setNumUsers(int fold, int nUsers) {
+        nUsersPerFold[fold - 1] = nUsers;
+    }
+
+    /**
+     * Number of users evaluated in a fold.
+     *
+     * @param fold fold, starting at 1
+     * @return
+     */
+    public int getNumUsers(int fold) {
+        return nUsersPerFold[fold - 1];
+    }
+
+    /**
+     * Number of users evaluated in all the folds.
+     *
+     * @return
+     */
+    public int getNumUsers() {
+        int n = 0;
+        for (int nUsers : nUsersPerFold) {
+            n += nUsers;
+        }
+        return n;
+    }
+
+    public int getNFolds() {
+        return nFolds;
+    }
+
+    public int[] getTargetSizes() {
+        return targetSizes.clone();
+    }
+
+    public List<String> getRecNames() {
+        return recNames;
+    }
+
+    public String[] getMetrics() {
+        return metrics.clone();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
+import es.uam.ir.ranksys.metrics.fast.FastRelevanceModel;
+import es.uam.ir.util.IdxSet;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+/**
+ * Cache of the preference data of each cross-validation fold, so that the
+ * train, test and positive train data, the target samples and the trained
+ * models of a fold are loaded only once for all the recommenders. A fold is
+ * loaded by the first thread that requests it; concurrent requests for the
+ * same fold wait for that load. Folds stay in memory until they are
+ * explicitly evicted.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class FoldDataCache {
+
+    private final Loader loader;
+    private final Map<Integer, FutureTask<FoldData>> folds = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param loader
+     */
+    public FoldDataCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the data of a fold, loading it if it is not in the cache.
+     *
+     * @param fold
+     * @return
+     * @throws IOException
+     */
+    public FoldData get(int fold) throws IOException {
+        FutureTask<FoldData> task = folds.computeIfAbsent(fold, f -> new FutureTask<>(() -> loader.load(f)));
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            folds.remove(fold, task);
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Releases the data of a fold. A later request reloads it.
+     *
+     * @param fold
+     */
+    public void evict(int fold) {
+        folds.remove(fold);
+    }
+
+    /**
+     * Releases the data of all the folds.
+     */
+    public void evictAll() {
+        folds.clear();
+    }
+
+    /**
+     * Loads the data of a fold.
+     */
+    public interface Loader {
+
+        /**
+         *
+         * @param fold
+         * @return
+         * @throws IOException
+         */
+        FoldData load(int fold) throws IOException;
+    }
+
+    /**
+     * Preference data, target samples and trained models of a fold.
+     */
+    public static class FoldData {
+
+        private final FastPreferenceData<Long, Long> trainData;
+        private final FastPreferenceData<Long, Long> testData;
+        private final FastPreferenceData<Long, Long> positiveTrainData;
+        private final Map<Integer, IdxSet[]> userFilters;
+        private final Set<Integer> sampledSizes;
+        private final ModelCache models;
+        private final Map<String, FastRelevanceModel> relevanceModels = new ConcurrentHashMap<>();
+
+        /**
+         *
+         * @param trainData
+         * @param testData
+         * @param positiveTrainData
+         */
+        public FoldData(FastPreferenceData<Long, Long> trainData, FastPreferenceData<Long, Long> testData, FastPreferenceData<Long, Long> positiveTrainData) {
+            this(trainData, testData, positiveTrainData, Collections.emptyMap());
+        }
+
+        /**
+         *
+         * @param trainData
+         * @param testData
+         * @param positiveTrainData
+         * @param samplers target sample of each user for each target size
+         */
+        public FoldData(FastPreferenceData<Long, Long> trainData, FastPreferenceData<Long, Long> testData, FastPreferenceData<Long, Long> positiveTrainData, Map<Integer, Function<Long, IntPredicate>> samplers) {
+            this(trainData, testData, positiveTrainData, samplers, new ModelCache());
+        }
+
+        /**
+         *
+         * @param trainData
+         * @param testData
+         * @param positiveTrainData
+         * @param samplers target sample of each user for each target size
+         * @param models models trained on the train data
+         */
+        public FoldData(FastPreferenceData<Long, Long> trainData, FastPreferenceData<Long, Long> testData, FastPreferenceData<Long, Long> positiveTrainData, Map<Integer, Function<Long, IntPredicate>> samplers, ModelCache models) {
+            this.trainData = trainData;
+            this.testData = testData;
+            this.positiveTrainData = positiveTrainData;
+            this.userFilters = new HashMap<>();
+            this.sampledSizes = new HashSet<>();
+            materialize(samplers);
+            this.models = models;
+        }
+
+        public FastPreferenceData<Long, Long> getTrainData() {
+            return trainData;
+        }
+
+        public FastPreferenceData<Long, Long> getTestData() {
+            return testData;
+        }
+
+        public FastPreferenceData<Long, Long> getPositiveTrainData() {
+            return positiveTrainData;
+        }
+
+        /**
+         * Materializes, for each target size and user with train data, the
+         * items that can be recommended to the user: the target sample of the
+         * user, excluding the user's train items. Target sizes whose samples
+         * are explicit sets of items, rather than predicates, are recorded so
+         * that the items can be listed as candidates.
+         */
+        private void materialize(Map<Integer, Function<Long, IntPredicate>> samplers) {
+            int numItems = trainData.numItems();
+            IdxSet[] trainSets = new IdxSet[trainData.numUsers()];
+            trainData.getUidxWithPreferences().parallel().forEach(uidx -> trainSets[uidx] = IdxSet.of(trainData.getUidxPreferences(uidx).mapToInt(iv -> iv.v1).toArray(), numItems));
+
+            samplers.forEach((targetSize, sampler) -> {
+                IdxSet[] filters = new IdxSet[trainData.numUsers()];
+                boolean sampled = trainData.getUidxWithPreferences().parallel().mapToObj(uidx -> {
+                    IntPredicate sample = sampler.apply(trainData.uidx2user(uidx));
+                    IdxSet train = trainSets[uidx];
+                    filters[uidx] = sample instanceof IdxSet
+                            ? IdxSet.of(((IdxSet) sample).stream().filter(iidx -> !train.contains(iidx)).toArray(), numItems)
+                            : IdxSet.of(numItems, iidx -> sample.test(iidx) && !train.contains(iidx));
+                    return sample instanceof IdxSet;
+                }).reduce(true, Boolean::logicalAnd);
+                userFilters.put(targetSize, filters);
+                if (sampled) {
+                    sampledSizes.add(targetSize);
+                }
+            });
+        }
+
+        /**
+         * Items that can be recommended to each user for a target size: the
+         * target sample of the user, excluding the user's train items.
+         *
+         * @param targetSize
+         * @return
+         */
+        public Function<Long, IntPredicate> getUserFilter(int targetSize) {
+            IdxSet[] filters = userFilters.get(targetSize);
+            return filters == null ? null : user -> filters[trainData.user2uidx(user)];
+        }
+
+        /**
+         * Items that can be recommended to a user for a target size.
+         *
+         * @param targetSize
+         * @param uidx index of the user
+         * @return
+         */
+        public IdxSet getUserFilter(int targetSize, int uidx) {
+            return userFilters.get(targetSize)[uidx];
+        }
+
+        /**
+         * Items that can be recommended to a user for a target size, as a
+         * sorted list, when the target samples are explicit sets of items.
+         *
+         * @param targetSize
+         * @param user
+         * @return the list, or null if the target samples are given by a
+         * predicate, as for target sizes covering the whole catalog
+         */
+        public int[] getCandidates(int targetSize, Long user) {
+            if (!sampledSizes.contains(targetSize)) {
+                return null;
+            }
+            return userFilters.get(targetSize)[trainData.user2uidx(user)].toArray();
+        }
+
+        /**
+         * Relevance model of the test data, built on first request and shared
+         * by all the recommenders evaluated on the fold.
+         *
+         * @param threshold relevance threshold
+         * @param cutoff maximum length of evaluated recommendation lists
+         * @return
+         */
+        public FastRelevanceModel getRelevanceModel(double threshold, int cutoff) {
+            return relevanceModels.computeIfAbsent(threshold + "@" + cutoff, key -> new FastRelevanceModel(testData, threshold, cutoff));
+        }
+
+        public ModelCache getModels() {
+            return models;
+        }
+    }
+}
@@ -53,82 +53,72 @@ public class GenerateFigure {
      * @throws IOException
      */
     public static void main(String a[]) throws FileNotFoundException, IOException {
-        int figure = Integer.valueOf(a[0]);
+        // No figure number: all the figures, from a single load of each run
+        int figure = a.length > 0 ? Integer.valueOf(a[0]) : 0;
         //int figure = 2;
-        switch (figure) {
-            case 1:
-                generateFigure1(
-                        RESULTS_PATH + BIASED_PATH + ML1M + "-" + TARGET_SAMPLING_FILE,
-                        RESULTS_PATH + "figure1.txt",
-                        N_FOLDS,
-                        "P@10",
-                        FULL_TARGET_SIZE_ML1M);
-                break;
-            case 2:
-                generateFigure2(
-                        RESULTS_PATH + BIASED_PATH + YAHOO + "-" + TARGET_SAMPLING_FILE,
-                        RESULTS_PATH + UNBIASED_PATH + YAHOO + "-" + TARGET_SAMPLING_FILE,
-                        RESULTS_PATH + "figure2.txt",
-                        N_FOLDS,
-                        new String[]{"nDCG@10", "P@10", "Recall@10"},
-                        FULL_TARGET_SIZE_YAHOO);
-                break;
-            case 3:
-                generateFigure3(
-                        RESULTS_PATH + BIASED_PATH,
-                        new String[]{ML1M, YAHOO},
-                        new String[]{"nDCG@10", "P@10", "Recall@10"},
-                        RESULTS_PATH + "figure3.txt",
-                        N_FOLDS);
-                break;
-            case 4:
-                generateFigure4(
-                        RESULTS_PATH + BIASED_PATH,
-                        RESULTS_PATH + UNBIASED_PATH,
-                        new String[]{ML1M, YAHOO},
-                        new String[]{"nDCG@10", "P@10", "Recall@10"},
-                        RESULTS_PATH + "figure4.txt",
-                        N_FOLDS);
-                break;
-            case 5:
-                generateFigure5(
-                        RESULTS_PATH + BIASED_PATH,
-                        new String[]{ML1M, YAHOO},
-                        new String[]{"Coverage@10"},
-                        RESULTS_PATH + "figure5.txt",
-                        N_FOLDS);
-                break;
-            default:
-                System.out.println("Invalid figure number");
+        if (figure < 0 || figure > 5) {
+            System.out.println("Invalid figure number");
+            return;
+        }
+        ResultsStore results = new ResultsStore();
+        if (figure == 0 || figure == 1) {
+            generateFigure1(
+                    results,
+                    RESULTS_PATH + BIASED_PATH + ML1M + "-",
+                    RESULTS_PATH + "figure1.txt",
+                    N_FOLDS,
+                    "P@10",
+                    FULL_TARGET_SIZE_ML1M);
+        }
+        if (figure == 0 || figure == 2) {
+            generateFigure2(
+                    results,
+                    RESULTS_PATH + BIASED_PATH + YAHOO + "-",
+                    RESULTS_PATH + UNBIASED_PATH + YAHOO + "-",
+                    RESULTS_PATH + "figure2.txt",
+                    N_FOLDS,
+                    new String[]{"nDCG@10", "P@10", "Recall@10"},
+                    FULL_TARGET_SIZE_YAHOO);
+        }
+        if (figure == 0 || figure == 3) {
+            generateFigure3(
+                    results,
+                    RESULTS_PATH + BIASED_PATH,
+                    new String[]{ML1M, YAHOO},
+                    new String[]{"nDCG@10", "P@10", "Recall@10"},
+                    RESULTS_PATH + "figure3.txt",
+                    N_FOLDS);
+        }
+        if (figure == 0 || figure == 4) {
+            generateFigure4(
+                    results,
+                    RESULTS_PATH + BIASED_PATH,
+                    RESULTS_PATH + UNBIASED_PATH,
+                    new String[]{ML1M, YAHOO},
+                    new String[]{"nDCG@10", "P@10", "Recall@10"},
+                    RESULTS_PATH + "figure4.txt",
+                    N_FOLDS);
+        }
+        if (figure == 0 || figure == 5) {
+            generateFigure5(
+                    results,
+                    RESULTS_PATH + BIASED_PATH,
+                    new String[]{ML1M, YAHOO},
+                    new String[]{"Coverage@10"},
+                    RESULTS_PATH + "figure5.txt",
+                    N_FOLDS);
         }
     }
-    
+
     public static void generateFigure1(
-            String inFile,
+            ResultsStore results,
+            String dataset,
             String outFile,
             int nFolds,
             String metric,
-            int fullTargetSize) throws FileNotFoundException {
-        Map<String, double[]> values = new TreeMap<String, double[]>();
-        Scanner in = new Scanner(new File(inFile));
-        String colHeads[] = in.nextLine().split("\t");
-        int colMetric = Arrays.asList(colHeads).indexOf(metric);
-        while (in.hasNext()) {
-            String colValues[] = in.nextLine().split("\t");
-            int targetSize = Integer.valueOf(colValues[1]);
-            if (targetSize != 0 && targetSize != fullTargetSize) {
-                continue;
-            }
-            String recommender = colValues[2];
-            
-            double[] value = values.get(recommender);
-            if (value == null) {
-                value = new double[2];
-                values.put(recommender, value);
-            }
-            int index = (targetSize == fullTargetSize) ? 0 : 1;
-            value[index] += Double.valueOf(colValues[colMetric]);
-        }
+            int fullTargetSize) throws FileNotFoundException, IOException {
+        results.load(dataset);
+        ResultsTable table = results.get(dataset);
         
         PrintStream out = new PrintStream(outFile);
         out.println("====================");
@@ -137,149 +127,91 @@ public class GenerateFigure {
         
         out.println(metric);
         out.println("Recommender\tFull\tTest");
-        for (String recommender : values.keySet()) {
-            out.print(recommender);
-            for (double value : values.get(recommender)) {
-                out.print("\t" + value / nFolds);
+        for (String recommender : new TreeSet<>(table.getRecNames())) {
+            if (!table.contains(fullTargetSize, recommender) && !table.contains(0, recommender)) {
+                continue;
             }
+            out.print(recommender);
+            out.print("\t" + table.sum(fullTargetSize, recommender, metric) / nFolds);
+            out.print("\t" + table.sum(0, recommender, metric) / nFolds);
             out.println();
         }
+        out.close();
     }
     
     public static void generateFigure2(
-            String biasedFile,
-            String unbiasedFile,
+            ResultsStore results,
+            String biasedDataset,
+            String unbiasedDataset,
             String outFile,
             int nFolds,
             String[] metrics,
-            int fullTargetSize) throws FileNotFoundException {
-        List<String> metricList = Arrays.asList(metrics);
-        // Metric -> -> rec system -> full, unbiased, test
-        Map<String, Map<String, double[]>> values = new TreeMap<String, Map<String, double[]>>();
-
-        //Biased file
-        Scanner in = new Scanner(new File(biasedFile));
-        String colHeads[] = in.nextLine().split("\t");
-        for (int i = 3; i < colHeads.length; i++) {
-            String metric = colHeads[i];
-            if (metricList.contains(metric)) {
-                values.put(metric, new TreeMap<String, double[]>());
-            }
-        }
-        while (in.hasNext()) {
-            String colValues[] = in.nextLine().split("\t");
-            for (int i = 3; i < colValues.length; i++) {
-                String metric = colHeads[i];
-                if (!metricList.contains(metric)) {
-                    continue;
-                }
-                int targetSize = Integer.valueOf(colValues[1]);
-                if (targetSize != 0 && targetSize != fullTargetSize) {
-                    continue;
-                }
-                String recommender = colValues[2];
-                
-                double[] value = values.get(metric).get(recommender);
-                if (value == null) {
-                    value = new double[3];
-                    values.get(metric).put(recommender, value);
-                }
-                int index = (targetSize == fullTargetSize) ? 0 : 2;
-                value[index] += Double.valueOf(colValues[i]);
-            }
-        }
-
-        //Unbiased file
-        in = new Scanner(new File(unbiasedFile));
-        colHeads = in.nextLine().split("\t");
-        while (in.hasNext()) {
-            String colValues[] = in.nextLine().split("\t");
-            for (int i = 3; i < colValues.length; i++) {
-                String metric = colHeads[i];
-                if (!metricList.contains(metric)) {
-                    continue;
-                }
-                double[] value = values.get(metric).get(colValues[2]);
-                value[1] += Double.valueOf(colValues[i]);
-            }
-        }
+            int fullTargetSize) throws FileNotFoundException, IOException {
+        results.load(biasedDataset);
+        results.load(unbiasedDataset);
+        ResultsTable biased = results.get(biasedDataset);
+        ResultsTable unbiased = results.get(unbiasedDataset);
         
         PrintStream out = new PrintStream(outFile);
         out.println("====================");
         out.println("Dataset: yahoo");
         out.println("====================");
         
-        for (String metric : metricList) {
+        for (String metric : metrics) {
             out.println("\n" + metric);
             out.println("Recommender\tFull\tUnbiased\tTest");
-            for (String recommender : values.get(metric).keySet()) {
-                out.print(recommender);
-                for (double value : values.get(metric).get(recommender)) {
-                    out.print("\t" + value / nFolds);
+            for (String recommender : new TreeSet<>(biased.getRecNames())) {
+                if (!biased.contains(fullTargetSize, recommender) && !biased.contains(0, recommender)) {
+                    continue;
                 }
+                //Unbiased: all the target sizes of the unbiased run
+                double unbiasedValue = 0;
+                for (int targetSize : unbiased.getTargetSizes()) {
+                    unbiasedValue += unbiased.sum(targetSize, recommender, metric);
+                }
+                out.print(recommender);
+                out.print("\t" + biased.sum(fullTargetSize, recommender, metric) / nFolds);
+                out.print("\t" + unbiasedValue / nFolds);
+                out.print("\t" + biased.sum(0, recommender, metric) / nFolds);
                 out.println();
             }            
         }
+        out.close();
     }
     
     public static void generateFigure3(
+            ResultsStore results,
             String folder,
             String datasets[],
             String metrics[],
             String outFile,
-            int nFolds) throws FileNotFoundException {
-        List<String> metricList = Arrays.asList(metrics);
+            int nFolds) throws FileNotFoundException, IOException {
         PrintStream out = new PrintStream(outFile);
         for (String dataset : datasets) {
-            String inFile = folder + dataset + "-" + TARGET_SAMPLING_FILE;
+            String runDataset = folder + dataset + "-";
+            results.load(runDataset);
+            ResultsTable table = results.get(runDataset);
             out.println("====================");
             out.println("Dataset: " + dataset);
             out.println("====================\n");
 
-            // Metric -> target size -> rec system -> value
-            Map<String, Map<Integer, Map<String, Double>>> values = new TreeMap<String, Map<Integer, Map<String, Double>>>();
-            Set<String> recommenders = new TreeSet<String>();
+            int[] targetSizes = table.getTargetSizes();
+            Arrays.sort(targetSizes);
+            Set<String> recommenders = new TreeSet<String>(table.getRecNames());
             
-            Scanner in = new Scanner(new File(inFile));
-            String colHeads[] = in.nextLine().split("\t");
-            for (int i = 3; i < colHeads.length; i++) {
-                String metric = colHeads[i];
-                if (metricList.contains(metric)) {
-                    values.put(metric, new TreeMap<Integer, Map<String, Double>>());
-                }
-            }
-            while (in.hasNext()) {
-                String colValues[] = in.nextLine().split("\t");
-                int targetSize = new Integer(colValues[1]);
-                String rec = colValues[2];
-                recommenders.add(rec);
-                for (int i = 3; i < colValues.length; i++) {
-                    String metric = colHeads[i];
-                    if (!metricList.contains(metric)) {
-                        continue;
-                    }
-                    double value = new Double(colValues[i]);
-                    if (!values.get(metric).containsKey(targetSize)) {
-                        values.get(metric).put(targetSize, new TreeMap<String, Double>());
-                    }
-                    if (!values.get(metric).get(targetSize).containsKey(rec)) {
-                        values.get(metric).get(targetSize).put(rec, 0.0);
-                    }
-                    values.get(metric).get(targetSize).put(rec, values.get(metric).get(targetSize).get(rec) + value);
-                }
-            }
-            
-            for (String metric : metricList) {
+            for (String metric : metrics) {
                 out.println(metric);
                 out.print("Target size");
                 for (String rec : recommenders) {
                     out.print("\t" + rec);
                 }
                 out.println();
-                for (int targetSize : values.get(metric).keySet()) {
+                for (int targetSize : targetSizes) {
                     out.print(targetSize + "\t");
-                    for (String rec : values.get(metric).get(targetSize).keySet()) {
-                        out.print(values.get(metric).get(targetSize).get(rec) / nFolds + "\t");
+                    for (String rec : recommenders) {
+                        if (table.contains(targetSize, rec)) {
+                            out.print(table.sum(targetSize, rec, metric) / nFolds + "\t");
+                        }
                     }
                     out.println();
                 }
@@ -290,6 +222,7 @@ public class GenerateFigure {
     }
     
     public static void generateFigure4(
+            ResultsStore results,
             String biasedFolder,
             String unbiasedFolder,
             String datasets[],
@@ -384,82 +317,54 @@ public class GenerateFigure {
 
             //Curve: Correlation with unbiased evaluation
             try {
-                // Metric -> rec system -> value
-                Map<String, Map<String, Double>> unbiasedValues = new TreeMap<String, Map<String, Double>>();
-                
-                String unbiasedFiles = unbiasedFolder + dataset + "-" + TARGET_SAMPLING_FILE;
-                Scanner unbiasedIn = new Scanner(new File(unbiasedFiles));
-                String unbiasedColHeads[] = unbiasedIn.nextLine().split("\t");
-                for (int i = 2; i < unbiasedColHeads.length; i++) {
-                    String metric = unbiasedColHeads[i];
-                    if (metricList.contains(metric)) {
-                        unbiasedValues.put(metric, new TreeMap<String, Double>());
-                    }
-                }
-                while (unbiasedIn.hasNext()) {
-                    String colValues[] = unbiasedIn.nextLine().split("\t");
-                    String rec = colValues[2];
-                    for (int i = 3; i < colValues.length; i++) {
-                        String metric = unbiasedColHeads[i];
-                        if (!metricList.contains(metric)) {
-                            continue;
-                        }
-                        double value = new Double(colValues[i]);
-                        if (!unbiasedValues.get(metric).containsKey(rec)) {
-                            unbiasedValues.get(metric).put(rec, 0.0);
-                        }
-                        unbiasedValues.get(metric).put(rec, unbiasedValues.get(metric).get(rec) + value);
-                    }
-                }
-
-                // Metric -> target size -> rec system -> value
-                Map<String, Map<Integer, Map<String, Double>>> biasedValues = new TreeMap<String, Map<Integer, Map<String, Double>>>();
-                
-                String biasedFiles = biasedFolder + dataset + "-" + TARGET_SAMPLING_FILE;
-                Scanner biasedIn = new Scanner(new File(biasedFiles));
-                String biasedColHeads[] = biasedIn.nextLine().split("\t");
-                for (int i = 2; i < biasedColHeads.length; i++) {
-                    String metric = biasedColHeads[i];
-                    if (metricList.contains(metric)) {
-                        biasedValues.put(metric, new TreeMap<Integer, Map<String, Double>>());
-                    }
-                }
-                while (biasedIn.hasNext()) {
-                    String colValues[] = biasedIn.nextLine().split("\t");
-                    int targetSize = new Integer(colValues[1]);
-                    String rec = colValues[2];
-                    for (int i = 3; i < colValues.length; i++) {
-                        String metric = biasedColHeads[i];
-                        if (!metricList.contains(metric)) {
-                            continue;
-                        }
-                        double value = new Double(colValues[i]);
-                        if (!biasedValues.get(metric).containsKey(targetSize)) {
-                            biasedValues.get(metric).put(targetSize, new TreeMap<String, Double>());
-                        }
-                        if (!biasedValues.get(metric).get(targetSize).containsKey(rec)) {
-                            biasedValues.get(metric).get(targetSize).put(rec, 0.0);
-                        }
-                        biasedValues.get(metric).get(targetSize).put(rec, biasedValues.get(metric).get(targetSize).get(rec) + value / nFolds);
-                    }
-                }
+                String unbiasedDataset = unbiasedFolder + dataset + "-";
+                String biasedDataset = biasedFolder + dataset + "-";
+                results.load(unbiasedDataset);
+                results.load(biasedDataset);
+                ResultsTable unbiased = results.get(unbiasedDataset);
+                ResultsTable biased = results.get(biasedDataset);
 
                 //Compute kendal correlation
                 String curve = "Correlation with unbiased evaluation";
                 curves.add(curve);
                 for (String metric : values.keySet()) {
+                    // Rec system -> value
+                    Map<String, Double> unbiasedValues = new TreeMap<String, Double>();
+                    for (String rec : unbiased.getRecNames()) {
+                        double value = 0;
+                        for (int targetSize : unbiased.getTargetSizes()) {
+                            value += unbiased.sum(targetSize, rec, metric);
+                        }
+                        unbiasedValues.put(rec, value);
+                    }
                     for (int targetSize : values.get(metric).keySet()) {
+                        // Rec system -> value
+                        Map<String, Double> biasedValues = new TreeMap<String, Double>();
+                        for (String rec : biased.getRecNames()) {
+                            if (!biased.contains(targetSize, rec)) {
+                                continue;
+                            }
+                            double value = 0;
+                            for (int fold = 1; fold <= biased.getNFolds(); fold++) {
+                                double foldValue = biased.get(fold, targetSize, rec, metric);
+                                if (!Double.isNaN(foldValue)) {
+                                    value += foldValue / nFolds;
+                                }
+                            }
+                            biasedValues.put(rec, value);
+                        }
+
                         double kendalCorrelation = 0.0;
-                        List<String> recommenders = new ArrayList<>(biasedValues.get(metric).get(targetSize).keySet());
+                        List<String> recommenders = new ArrayList<>(biasedValues.keySet());
                         int n = recommenders.size();
                         for (int i = 0; i < n; i++) {
                             String rec1 = recommenders.get(i);
-                            double biasedValue1 = biasedValues.get(metric).get(targetSize).get(rec1);
-                            double unbiasedValue1 = unbiasedValues.get(metric).get(rec1);
+                            double biasedValue1 = biasedValues.get(rec1);
+                            double unbiasedValue1 = unbiasedValues.get(rec1);
                             for (int j = i + 1; j < n; j++) {
                                 String rec2 = recommenders.get(j);
-                                double biasedValue2 = biasedValues.get(metric).get(targetSize).get(rec2);
-                                double unbiasedValue2 = unbiasedValues.get(metric).get(rec2);
+                                double biasedValue2 = biasedValues.get(rec2);
+                                double unbiasedValue2 = unbiasedValues.get(rec2);
                                 double diffBiased = biasedValue2 - biasedValue1;
                                 double diffUnBiased = unbiasedValue2 - unbiasedValue1;
                                 kendalCorrelation += Math.signum(diffBiased*diffUnBiased);
@@ -538,6 +443,7 @@ public class GenerateFigure {
     }
     
     public static void generateFigure5(
+            ResultsStore results,
             String folder,
             String datasets[],
             String metrics[],
@@ -565,7 +471,7 @@ public class GenerateFigure {
             datasets[i] += "-nofill";
         }
         
-        generateFigure3(folder, datasets, metrics, outFile, nFolds);
+        generateFigure3(results, folder, datasets, metrics, outFile, nFolds);
     }
     
 }
@@ -9,6 +9,7 @@
 package es.uam.ir.targetsampling;
 
 import es.uam.ir.crossvalidation.CrossValidation;
+import es.uam.ir.util.RandomSource;
 import es.uam.ir.util.Timer;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -118,7 +119,7 @@ public class Initialize {
         ml1mOut.print(ratings.replace("::", "\t"));
         ml1mOut.close();
         
-        CrossValidation.crowssValidation(PREPROCESSED_ML1M_DATASET_PATH, ML1M_PATH, GenerateFigure.N_FOLDS);
+        CrossValidation.crowssValidation(PREPROCESSED_ML1M_DATASET_PATH, ML1M_PATH, GenerateFigure.N_FOLDS, crossValidationRandom(ML1M_BIASED_PROPERTIES_FILE));
     }
 
     static void processYahoo() throws FileNotFoundException, IOException {
@@ -144,7 +145,16 @@ public class Initialize {
         }
         trainOut.close();
         
-        CrossValidation.crowssValidation(PREPROCESSED_YAHOO_TRAIN_DATASET_PATH, YAHOO_PATH, GenerateFigure.N_FOLDS);
+        CrossValidation.crowssValidation(PREPROCESSED_YAHOO_TRAIN_DATASET_PATH, YAHOO_PATH, GenerateFigure.N_FOLDS, crossValidationRandom(YAHOO_BIASED_PROPERTIES_FILE));
+    }
+
+    /**
+     * Source of the random fold assignment of a dataset, seeded by the
+     * random.seed of its configuration, if any.
+     */
+    static RandomSource crossValidationRandom(String propertiesFile) throws IOException {
+        Long seed = new Configuration(propertiesFile).getRandomSeed();
+        return (seed == null ? new RandomSource() : new RandomSource(seed)).split("crossvalidation");
     }
 
 }
@@ -0,0 +1,396 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
+import es.uam.ir.ranksys.nn.user.neighborhood.CosineTopKUserNeighborhood;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.ranksys.core.util.tuples.Tuple2id;
+
+/**
+ * Cache of the models trained on the data of a cross-validation fold, so that
+ * each model is trained once for all the recommenders that use it. Models are
+ * identified by a key made of the algorithm and its hyperparameters, and the
+ * first thread that requests a model trains it while concurrent requests for
+ * the same key wait.
+ *
+ * <p>
+ * Matrix factorizations and user neighborhoods can also be stored in binary
+ * files, so that later runs on the same data load them instead of training
+ * them again. Stored neighborhoods are accessed through memory mapping. A
+ * stored model is used only if its file is newer than the train data, and it
+ * was built for the same number of users and items and with the same random
+ * seed; otherwise it is trained and stored again.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class ModelCache {
+
+    private static final int FACTORIZATION_MAGIC = 0x5453464D;
+    private static final int NEIGHBORHOOD_MAGIC = 0x54534E4E;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES + Long.BYTES;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    private final String modelsPath;
+    private final long dataLastModified;
+    private final Map<String, FutureTask<Object>> models = new ConcurrentHashMap<>();
+
+    /**
+     * Cache that keeps the models in memory only.
+     */
+    public ModelCache() {
+        this(null, 0);
+    }
+
+    /**
+     *
+     * @param modelsPath path prefix of the model files, or null to keep the
+     * models in memory only
+     * @param dataLastModified modification time of the train data; older
+     * model files are not used
+     */
+    public ModelCache(String modelsPath, long dataLastModified) {
+        this.modelsPath = modelsPath;
+        this.dataLastModified = dataLastModified;
+    }
+
+    /**
+     * Returns a matrix factorization, training it if it is neither in the
+     * cache nor stored.
+     *
+     * @param key algorithm and hyperparameters of the factorization
+     * @param seed seed of the random initialization of the factors
+     * @param users user index
+     * @param items item index
+     * @param trainer trains the factorization
+     * @return
+     * @throws IOException
+     */
+    public Factorization<Long, Long> getFactorization(String key, long seed, FastUserIndex<Long> users, FastItemIndex<Long> items, Supplier<Factorization<Long, Long>> trainer) throws IOException {
+        return get(key, () -> {
+            if (modelsPath == null) {
+                return trainer.get();
+            }
+            File file = getFile(key);
+            Factorization<Long, Long> factorization = readFactorization(file, seed, users, items);
+            if (factorization == null) {
+                factorization = trainer.get();
+                writeFactorization(file, seed, factorization);
+            }
+            return factorization;
+        });
+    }
+
+    /**
+     * Returns the neighbors of all the users, computing them if they are
+     * neither in the cache nor stored.
+     *
+     * @param key algorithm and hyperparameters of the neighborhood
+     * @param users user index
+     * @param trainer computes the neighborhood
+     * @return
+     * @throws IOException
+     */
+    public UserNeighborhood<Long> getNeighborhood(String key, FastUserIndex<Long> users, Supplier<UserNeighborhood<Long>> trainer) throws IOException {
+        return get(key, () -> {
+            if (modelsPath == null) {
+                return trainer.get();
+            }
+            File file = getFile(key);
+            UserNeighborhood<Long> neighborhood = readNeighborhood(file, users);
+            if (neighborhood == null) {
+                writeNeighborhood(file, trainer.get(), users.numUsers());
+                neighborhood = readNeighborhood(file, users);
+                if (neighborhood == null) {
+                    throw new IOException("model file " + file + " could not be read back");
+                }
+            }
+            return neighborhood;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M> M get(String key, Callable<M> loader) throws IOException {
+        FutureTask<Object> task = models.computeIfAbsent(key, k -> new FutureTask<>((Callable<Object>) loader));
+        task.run();
+        try {
+            return (M) task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            models.remove(key, task);
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(modelsPath + key + ".bin");
+    }
+
+    /**
+     * Header of a model file: magic number, version, three dimensions of the
+     * model and the random seed it was trained with. Returns null if it does
+     * not match the expected model; negative dimensions are not checked.
+     */
+    private IntBuffer readHeader(FileChannel channel, int magic, long seed, int... dims) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = map(channel, 0, HEADER_BYTES);
+        IntBuffer ints = header.asIntBuffer();
+        if (ints.get(0) != magic || ints.get(1) != VERSION || header.getLong(5 * Integer.BYTES) != seed) {
+            return null;
+        }
+        for (int i = 0; i < dims.length; i++) {
+            if (dims[i] >= 0 && ints.get(2 + i) != dims[i]) {
+                return null;
+            }
+        }
+        return ints;
+    }
+
+    private static ByteBuffer header(int magic, long seed, int... dims) {
+        ByteBuffer header = allocate(HEADER_BYTES);
+        header.putInt(magic).putInt(VERSION);
+        for (int i = 0; i < 3; i++) {
+            header.putInt(i < dims.length ? dims[i] : 0);
+        }
+        header.putLong(seed);
+        header.flip();
+        return header;
+    }
+
+    private boolean isValid(File file) {
+        return file.exists() && file.lastModified() >= dataLastModified;
+    }
+
+    /**
+     * Layout: header (nUsers, nItems, K), user factors and item factors, row
+     * by row.
+     */
+    private Factorization<Long, Long> readFactorization(File file, long seed, FastUserIndex<Long> users, FastItemIndex<Long> items) throws IOException {
+        if (!isValid(file)) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            IntBuffer header = readHeader(channel, FACTORIZATION_MAGIC, seed, users.numUsers(), items.numItems(), -1);
+            if (header == null) {
+                return null;
+            }
+            int nUsers = header.get(2);
+            int nItems = header.get(3);
+            int K = header.get(4);
+            if (channel.size() != HEADER_BYTES + (long) (nUsers + nItems) * K * Double.BYTES) {
+                return null;
+            }
+            DoubleBuffer factors = map(channel, HEADER_BYTES, (long) (nUsers + nItems) * K * Double.BYTES).asDoubleBuffer();
+            DenseDoubleMatrix2D userMatrix = readMatrix(factors, nUsers, K);
+            DenseDoubleMatrix2D itemMatrix = readMatrix(factors, nItems, K);
+            return new Factorization<>(users, items, userMatrix, itemMatrix, K);
+        }
+    }
+
+    private static DenseDoubleMatrix2D readMatrix(DoubleBuffer buffer, int rows, int columns) {
+        DenseDoubleMatrix2D matrix = new DenseDoubleMatrix2D(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                matrix.setQuick(i, j, buffer.get());
+            }
+        }
+        return matrix;
+    }
+
+    private void writeFactorization(File file, long seed, Factorization<Long, Long> factorization) throws IOException {
+        DenseDoubleMatrix2D userMatrix = factorization.getUserMatrix();
+        DenseDoubleMatrix2D itemMatrix = factorization.getItemMatrix();
+        int K = factorization.getK();
+        write(file, channel -> {
+            write(channel, header(FACTORIZATION_MAGIC, seed, userMatrix.rows(), itemMatrix.rows(), K));
+            writeMatrix(channel, userMatrix);
+            writeMatrix(channel, itemMatrix);
+        });
+    }
+
+    private static void writeMatrix(FileChannel channel, DenseDoubleMatrix2D matrix) throws IOException {
+        ByteBuffer buffer = allocate(matrix.columns() * Double.BYTES);
+        for (int i = 0; i < matrix.rows(); i++) {
+            buffer.clear();
+            for (int j = 0; j < matrix.columns(); j++) {
+                buffer.putDouble(matrix.getQuick(i, j));
+            }
+            buffer.flip();
+            write(channel, buffer);
+        }
+    }
+
+    /**
+     * Layout: header (nUsers, number of neighbors), offsets of the neighbors
+     * of each user, neighbor indices and similarities.
+     */
+    private UserNeighborhood<Long> readNeighborhood(File file, FastUserIndex<Long> users) throws IOException {
+        if (!isValid(file)) {
+            return null;
+        }
+        int nUsers = users.numUsers();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            IntBuffer header = readHeader(channel, NEIGHBORHOOD_MAGIC, 0, nUsers, -1, -1);
+            if (header == null) {
+                return null;
+            }
+            int nNeighbors = header.get(3);
+            if (channel.size() != HEADER_BYTES + (long) (nUsers + 1) * Integer.BYTES + (long) nNeighbors * (Integer.BYTES + Double.BYTES)) {
+                return null;
+            }
+            long position = HEADER_BYTES;
+            IntBuffer offsets = map(channel, position, (long) (nUsers + 1) * Integer.BYTES).asIntBuffer();
+            position += (long) (nUsers + 1) * Integer.BYTES;
+            IntBuffer idxs = map(channel, position, (long) nNeighbors * Integer.BYTES).asIntBuffer();
+            position += (long) nNeighbors * Integer.BYTES;
+            DoubleBuffer sims = map(channel, position, (long) nNeighbors * Double.BYTES).asDoubleBuffer();
+            return new MappedUserNeighborhood(users, offsets, idxs, sims);
+        }
+    }
+
+    /**
+     * Neighbors of a CosineTopKUserNeighborhood are copied from its arrays;
+     * those of other neighborhoods are gathered into arrays first.
+     */
+    private void writeNeighborhood(File file, UserNeighborhood<Long> neighborhood, int nUsers) throws IOException {
+        int[][] idxs = new int[nUsers][];
+        double[][] sims = new double[nUsers][];
+        if (neighborhood instanceof CosineTopKUserNeighborhood) {
+            CosineTopKUserNeighborhood<Long> topK = (CosineTopKUserNeighborhood<Long>) neighborhood;
+            for (int uidx = 0; uidx < nUsers; uidx++) {
+                idxs[uidx] = topK.getNeighborIdxs(uidx);
+                sims[uidx] = topK.getNeighborSims(uidx);
+            }
+        } else {
+            IntStream.range(0, nUsers).parallel().forEach(uidx -> {
+                List<Tuple2id> neighbors = neighborhood.getNeighbors(uidx).collect(Collectors.toList());
+                idxs[uidx] = neighbors.stream().mapToInt(neighbor -> neighbor.v1).toArray();
+                sims[uidx] = neighbors.stream().mapToDouble(neighbor -> neighbor.v2).toArray();
+            });
+        }
+        int[] offsets = new int[nUsers + 1];
+        for (int uidx = 0; uidx < nUsers; uidx++) {
+            offsets[uidx + 1] = offsets[uidx] + idxs[uidx].length;
+        }
+        int nNeighbors = offsets[nUsers];
+        write(file, channel -> {
+            write(channel, header(NEIGHBORHOOD_MAGIC, 0, nUsers, nNeighbors));
+            ByteBuffer buffer = allocate(WRITE_BUFFER_BYTES);
+            for (int offset : offsets) {
+                reserve(channel, buffer, Integer.BYTES).putInt(offset);
+            }
+            for (int[] userIdxs : idxs) {
+                for (int idx : userIdxs) {
+                    reserve(channel, buffer, Integer.BYTES).putInt(idx);
+                }
+            }
+            for (double[] userSims : sims) {
+                for (double sim : userSims) {
+                    reserve(channel, buffer, Double.BYTES).putDouble(sim);
+                }
+            }
+            buffer.flip();
+            write(channel, buffer);
+        });
+    }
+
+    private interface Writer {
+
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Writes a model file through a temporary file, so that an interrupted
+     * run does not leave a partial model behind.
+     */
+    private static void write(File file, Writer writer) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile); FileChannel channel = out.getChannel()) {
+            writer.write(channel);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes out the contents of a buffer if it has no room for the given
+     * number of bytes.
+     */
+    private static ByteBuffer reserve(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            write(channel, buffer);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Neighbors of all the users read from a mapped model file, as lists in
+     * the order in which the trained neighborhood returned them.
+     */
+    private static class MappedUserNeighborhood extends UserNeighborhood<Long> {
+
+        MappedUserNeighborhood(FastUserIndex<Long> users, IntBuffer offsets, IntBuffer idxs, DoubleBuffer sims) {
+            super(users, idx -> IntStream.range(offsets.get(idx), offsets.get(idx + 1))
+                    .mapToObj(j -> new Tuple2id(idxs.get(j), sims.get(j))));
+        }
+    }
+}
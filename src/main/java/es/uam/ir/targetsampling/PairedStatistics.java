@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.nio.FloatBuffer;
+import org.apache.commons.math3.distribution.TDistribution;
+
+/**
+ * Statistics of the per-user differences between two recommenders on a
+ * metric: the moments needed by a two-sided paired t-test, the number of
+ * users on which both recommenders tie, and the number of users on which
+ * they tie at zero.
+ *
+ * <p>
+ * The statistics of all the metrics of a pair are computed in a single pass
+ * over the columns of the pair in an EvalStore. Columns are read by blocks of
+ * users into two small buffers, and each block is consumed by all the
+ * statistics at once while it is in cache. The sums of the differences are
+ * shifted by the first difference, so that the variance is accurate in one
+ * pass.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class PairedStatistics {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private int n = 0;
+    private double shift = 0;
+    private double sum = 0;
+    private double sum2 = 0;
+    private int nTies = 0;
+    private int nTiesAtZero = 0;
+    private double[] differences = null;
+
+    /**
+     * Computes the statistics of a pair of recommenders for all the metrics
+     * of a store.
+     *
+     * @param evals per-user values
+     * @param targetSize
+     * @param rec1
+     * @param rec2
+     * @return statistics of each metric, in the order of evals.getMetrics()
+     */
+    public static PairedStatistics[] of(EvalStore evals, int targetSize, String rec1, String rec2) {
+        return of(evals, targetSize, rec1, rec2, false);
+    }
+
+    /**
+     * Computes the statistics of a pair of recommenders for all the metrics
+     * of a store, optionally keeping the per-user differences for further
+     * tests.
+     *
+     * @param evals per-user values
+     * @param targetSize
+     * @param rec1
+     * @param rec2
+     * @param keepDifferences whether to keep the differences
+     * @return statistics of each metric, in the order of evals.getMetrics()
+     */
+    public static PairedStatistics[] of(EvalStore evals, int targetSize, String rec1, String rec2, boolean keepDifferences) {
+        String[] metrics = evals.getMetrics();
+        PairedStatistics[] stats = new PairedStatistics[metrics.length];
+        FloatBuffer[] columns1 = new FloatBuffer[metrics.length];
+        FloatBuffer[] columns2 = new FloatBuffer[metrics.length];
+        for (int m = 0; m < metrics.length; m++) {
+            stats[m] = new PairedStatistics();
+            if (keepDifferences) {
+                stats[m].differences = new double[evals.getNumUsers()];
+            }
+            // Duplicates, so that concurrent pairs do not share buffer positions
+            columns1[m] = evals.getColumn(targetSize, rec1, metrics[m]).duplicate();
+            columns2[m] = evals.getColumn(targetSize, rec2, metrics[m]).duplicate();
+        }
+
+        float[] block1 = new float[BLOCK_SIZE];
+        float[] block2 = new float[BLOCK_SIZE];
+        for (int fold = 1; fold <= evals.getNFolds(); fold++) {
+            int end = evals.getOffset(fold) + evals.getNumUsers(fold);
+            for (int start = evals.getOffset(fold); start < end; start += BLOCK_SIZE) {
+                int length = Math.min(BLOCK_SIZE, end - start);
+                for (int m = 0; m < metrics.length; m++) {
+                    columns1[m].position(start);
+                    columns1[m].get(block1, 0, length);
+                    columns2[m].position(start);
+                    columns2[m].get(block2, 0, length);
+                    stats[m].add(block1, block2, length);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private void add(float[] values1, float[] values2, int length) {
+        if (n == 0 && length > 0) {
+            shift = (double) values1[0] - values2[0];
+        }
+        for (int k = 0; k < length; k++) {
+            float v1 = values1[k];
+            float v2 = values2[k];
+            if (differences != null) {
+                differences[n + k] = (double) v1 - v2;
+            }
+            double d = (double) v1 - v2 - shift;
+            sum += d;
+            sum2 += d * d;
+            if (Float.compare(v1, v2) == 0) {
+                nTies++;
+                if (Float.compare(v1, 0) == 0) {
+                    nTiesAtZero++;
+                }
+            }
+        }
+        n += length;
+    }
+
+    /**
+     * Number of users.
+     *
+     * @return
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * Mean of the differences between the first and the second recommender.
+     *
+     * @return
+     */
+    public double getMeanDifference() {
+        return shift + sum / n;
+    }
+
+    /**
+     * Sample variance of the differences.
+     *
+     * @return
+     */
+    public double getVarianceDifference() {
+        return Math.max(0, sum2 - sum * sum / n) / (n - 1);
+    }
+
+    /**
+     * P-value of a two-sided paired t-test, as TTest.pairedTTest, or NaN if
+     * there are less than two users.
+     *
+     * @return
+     */
+    public double getPValue() {
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double t = Math.abs(getMeanDifference() / Math.sqrt(getVarianceDifference() / n));
+        return 2.0 * new TDistribution(null, n - 1).cumulativeProbability(-t);
+    }
+
+    /**
+     * Differences between the first and the second recommender of each user.
+     *
+     * @return the differences, or null if they were not kept
+     */
+    public double[] getDifferences() {
+        return differences;
+    }
+
+    /**
+     * Number of users on which both recommenders have the same value.
+     *
+     * @return
+     */
+    public int getNTies() {
+        return nTies;
+    }
+
+    /**
+     * Number of users on which both recommenders have value zero.
+     *
+     * @return
+     */
+    public int getNTiesAtZero() {
+        return nTiesAtZero;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import es.uam.ir.util.RandomSource;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * Two-sided significance tests on the per-user differences between two
+ * recommenders, complementary to the paired t-test for metrics with many
+ * ties: a paired permutation (sign-flip) test and a bootstrap test on the
+ * mean difference, and a Wilcoxon signed-rank test.
+ *
+ * <p>
+ * Resamples are run in chunks of CHUNK_SIZE in parallel. Each chunk draws
+ * from its own generator, split from the random source by the keys of the
+ * test and the index of the chunk, so p-values do not depend on the threads
+ * that run the chunks. The permutation test groups equal differences, and
+ * the sum of the signs of a group of c differences is drawn from the bit
+ * count of the next c bits of a stream of random longs, so the generator is
+ * called once per 64 non-zero differences rather than once per user.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class ResamplingTests {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * Relative tolerance to count resampled statistics equal to the observed
+     * one, which may differ in the last bits by the order of the sums.
+     */
+    private static final double TOLERANCE = 1e-9;
+
+    private static final NormalDistribution NORMAL = new NormalDistribution(null, 0, 1);
+
+    private final int nResamples;
+    private final RandomSource random;
+
+    /**
+     *
+     * @param nResamples number of resamples of the permutation and bootstrap
+     * tests
+     * @param random source of the generators of the resamples
+     */
+    public ResamplingTests(int nResamples, RandomSource random) {
+        this.nResamples = nResamples;
+        this.random = random;
+    }
+
+    /**
+     * P-value of a paired permutation test: the probability that randomly
+     * flipping the signs of the differences gives an absolute sum at least as
+     * large as the observed one.
+     *
+     * @param differences per-user differences
+     * @param keys keys of the test, to split its generators
+     * @return
+     */
+    public double permutationTest(double[] differences, long... keys) {
+        double[] sorted = Arrays.stream(differences).filter(d -> d != 0).sorted().toArray();
+        int nGroups = 0;
+        double[] values = new double[sorted.length];
+        int[] counts = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            if (nGroups == 0 || sorted[i] != values[nGroups - 1]) {
+                values[nGroups++] = sorted[i];
+            }
+            counts[nGroups - 1]++;
+        }
+
+        int k = nGroups;
+        double observed = 0;
+        for (int g = 0; g < k; g++) {
+            observed += values[g] * counts[g];
+        }
+        double threshold = Math.abs(observed) * (1 - TOLERANCE);
+
+        int nHits = resample("permutation", keys, rnd -> {
+            RandomBits bits = new RandomBits(rnd);
+            double sum = 0;
+            for (int g = 0; g < k; g++) {
+                sum += values[g] * (2 * bits.ones(counts[g]) - counts[g]);
+            }
+            return Math.abs(sum) >= threshold;
+        });
+        return (nHits + 1.0) / (nResamples + 1);
+    }
+
+    /**
+     * P-value of a bootstrap test on the mean difference: the probability
+     * that the mean of a resample with replacement of the differences,
+     * shifted to have mean zero, is at least as far from zero as the
+     * observed mean.
+     *
+     * @param differences per-user differences
+     * @param keys keys of the test, to split its generators
+     * @return
+     */
+    public double bootstrapTest(double[] differences, long... keys) {
+        int n = differences.length;
+        double mean = Arrays.stream(differences).sum() / n;
+        double[] centered = Arrays.stream(differences).map(d -> d - mean).toArray();
+        double threshold = Math.abs(mean) * n * (1 - TOLERANCE);
+
+        int nHits = resample("bootstrap", keys, rnd -> {
+            // Two indices per random long, by multiplying each half by n
+            double sum = 0;
+            for (int i = 0; i < n; i += 2) {
+                long bits = rnd.nextLong();
+                sum += centered[(int) (((bits & 0xffffffffL) * n) >>> 32)];
+                if (i + 1 < n) {
+                    sum += centered[(int) (((bits >>> 32) * n) >>> 32)];
+                }
+            }
+            return Math.abs(sum) >= threshold;
+        });
+        return (nHits + 1.0) / (nResamples + 1);
+    }
+
+    /**
+     * P-value of a Wilcoxon signed-rank test, by the normal approximation
+     * with the correction for ties of the variance. Zero differences are
+     * discarded.
+     *
+     * @param differences per-user differences
+     * @return the p-value, or NaN if all the differences are zero
+     */
+    public static double wilcoxonTest(double[] differences) {
+        double[] positive = Arrays.stream(differences).filter(d -> d > 0).sorted().toArray();
+        double[] negative = Arrays.stream(differences).filter(d -> d < 0).map(d -> -d).sorted().toArray();
+        double n = positive.length + negative.length;
+
+        // Walk the absolute differences by increasing value, a group of ties at a time
+        double wPlus = 0;
+        double tieCorrection = 0;
+        int p = 0;
+        int q = 0;
+        while (p < positive.length || q < negative.length) {
+            double value = q == negative.length || (p < positive.length && positive[p] <= negative[q])
+                    ? positive[p]
+                    : negative[q];
+            int rankStart = p + q;
+            int nPositive = 0;
+            while (p < positive.length && positive[p] == value) {
+                p++;
+                nPositive++;
+            }
+            while (q < negative.length && negative[q] == value) {
+                q++;
+            }
+            double t = p + q - rankStart;
+            wPlus += nPositive * (rankStart + (t + 1) / 2);
+            tieCorrection += t * t * t - t;
+        }
+
+        double variance = n * (n + 1) * (2 * n + 1) / 24 - tieCorrection / 48;
+        if (variance <= 0) {
+            return Double.NaN;
+        }
+        double z = (wPlus - n * (n + 1) / 4) / Math.sqrt(variance);
+        return 2 * NORMAL.cumulativeProbability(-Math.abs(z));
+    }
+
+    /**
+     * Number of resamples whose statistic is at least as extreme as the
+     * observed one, running chunks of resamples in parallel.
+     */
+    private int resample(String test, long[] keys, Resample resample) {
+        RandomSource testRandom = random.split(test, keys);
+        int nChunks = (nResamples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return IntStream.range(0, nChunks).parallel().map(chunk -> {
+            SplittableRandom rnd = testRandom.get(chunk);
+            int nHits = 0;
+            for (int r = chunk * CHUNK_SIZE; r < Math.min(nResamples, (chunk + 1) * CHUNK_SIZE); r++) {
+                if (resample.isExtreme(rnd)) {
+                    nHits++;
+                }
+            }
+            return nHits;
+        }).sum();
+    }
+
+    /**
+     * Stream of random bits, drawn 64 at a time from a generator.
+     */
+    private static class RandomBits {
+
+        private final SplittableRandom rnd;
+        private long bits = 0;
+        private int nBits = 0;
+
+        RandomBits(SplittableRandom rnd) {
+            this.rnd = rnd;
+        }
+
+        /**
+         * Number of ones among the next c bits.
+         */
+        int ones(int c) {
+            int ones = 0;
+            if (c > nBits) {
+                ones += Long.bitCount(bits);
+                c -= nBits;
+                for (; c >= 64; c -= 64) {
+                    ones += Long.bitCount(rnd.nextLong());
+                }
+                bits = rnd.nextLong();
+                nBits = 64;
+            }
+            if (c > 0) {
+                ones += Long.bitCount(bits & (-1L >>> (64 - c)));
+                bits = c == 64 ? 0 : bits >>> c;
+                nBits -= c;
+            }
+            return ones;
+        }
+    }
+
+    /**
+     * A resample of a test.
+     */
+    private interface Resample {
+
+        boolean isExtreme(SplittableRandom rnd);
+    }
+}
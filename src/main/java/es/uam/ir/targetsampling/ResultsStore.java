@@ -0,0 +1,91 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import static es.uam.ir.targetsampling.TargetSampling.TARGET_SAMPLING_FILE;
+import static es.uam.ir.targetsampling.TargetSampling.TARGET_SAMPLING_TABLE_FILE;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Results of several runs, indexed by dataset, fold, target size,
+ * recommender and metric. A dataset is identified by the results path of its
+ * run (e.g. results/biased/ml1m-), and each one is loaded once from the
+ * binary ResultsTable of the run, or parsed from its TARGET_SAMPLING_FILE if
+ * the run did not write one or the table is older than the text results.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class ResultsStore {
+
+    private final Map<String, ResultsTable> tables = new HashMap<>();
+
+    /**
+     * Loads the results of a run, if not loaded yet.
+     *
+     * @param dataset results path of the run
+     * @throws FileNotFoundException if the run has no results
+     * @throws IOException
+     */
+    public void load(String dataset) throws IOException {
+        if (tables.containsKey(dataset)) {
+            return;
+        }
+        File tableFile = new File(dataset + TARGET_SAMPLING_TABLE_FILE);
+        File textFile = new File(dataset + TARGET_SAMPLING_FILE);
+        ResultsTable table;
+        if (tableFile.exists() && (!textFile.exists() || tableFile.lastModified() >= textFile.lastModified())) {
+            table = ResultsTable.read(tableFile.getPath());
+        } else if (textFile.exists()) {
+            table = ResultsTable.parse(textFile.getPath());
+        } else {
+            throw new FileNotFoundException(textFile.getPath());
+        }
+        tables.put(dataset, table);
+    }
+
+    /**
+     * Whether the results of a run are loaded.
+     *
+     * @param dataset results path of the run
+     * @return
+     */
+    public boolean contains(String dataset) {
+        return tables.containsKey(dataset);
+    }
+
+    /**
+     * Results of a run.
+     *
+     * @param dataset results path of the run
+     * @return
+     */
+    public ResultsTable get(String dataset) {
+        return tables.get(dataset);
+    }
+
+    /**
+     * Value of a metric in a fold of a run.
+     *
+     * @param dataset results path of the run
+     * @param fold fold, starting at 1
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @return the value, or NaN if there is no such value
+     */
+    public double get(String dataset, int fold, int targetSize, String recName, String metric) {
+        ResultsTable table = tables.get(dataset);
+        return table == null ? Double.NaN : table.get(fold, targetSize, recName, metric);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.targetsampling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Value of each metric by fold, target size and recommender of a run, as
+ * written to TARGET_SAMPLING_FILE, indexed in a dense array. Cells of the
+ * combinations that were not run are NaN.
+ *
+ * <p>
+ * Tables are stored in a binary file next to the text results of a run:
+ * header (magic, version, number of folds), the target sizes, recommender
+ * names and metric names, and the values by fold, target size, recommender
+ * and metric. Loading a table so reads the dimensions and a single block of
+ * doubles, without parsing the text rows.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class ResultsTable {
+
+    private static final int MAGIC = 0x54535254;
+    private static final int VERSION = 1;
+
+    private final int nFolds;
+    private final int[] targetSizes;
+    private final List<String> recNames;
+    private final String[] metrics;
+    private final Map<Integer, Integer> sizeIndex = new HashMap<>();
+    private final Map<String, Integer> recIndex = new HashMap<>();
+    private final Map<String, Integer> metricIndex = new HashMap<>();
+    private final double[] values;
+
+    /**
+     * Empty table.
+     *
+     * @param nFolds number of folds
+     * @param targetSizes
+     * @param recNames
+     * @param metrics
+     */
+    public ResultsTable(int nFolds, int[] targetSizes, List<String> recNames, String[] metrics) {
+        this.nFolds = nFolds;
+        this.targetSizes = targetSizes.clone();
+        this.recNames = new ArrayList<>(recNames);
+        this.metrics = metrics.clone();
+        for (int s = 0; s < targetSizes.length; s++) {
+            sizeIndex.put(targetSizes[s], s);
+        }
+        for (int r = 0; r < recNames.size(); r++) {
+            recIndex.put(recNames.get(r), r);
+        }
+        for (int m = 0; m < metrics.length; m++) {
+            metricIndex.put(metrics[m], m);
+        }
+        this.values = new double[nFolds * targetSizes.length * recNames.size() * metrics.length];
+        Arrays.fill(values, Double.NaN);
+    }
+
+    private int index(int fold, int s, int r, int m) {
+        return (((fold - 1) * targetSizes.length + s) * recNames.size() + r) * metrics.length + m;
+    }
+
+    /**
+     * Stores the value of a metric. Different cells may be stored
+     * concurrently.
+     *
+     * @param fold fold, starting at 1
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @param value
+     */
+    public void put(int fold, int targetSize, String recName, String metric, double value) {
+        values[index(fold, sizeIndex.get(targetSize), recIndex.get(recName), metricIndex.get(metric))] = value;
+    }
+
+    /**
+     * Value of a metric in a fold.
+     *
+     * @param fold fold, starting at 1
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @return the value, or NaN if the table has no such value
+     */
+    public double get(int fold, int targetSize, String recName, String metric) {
+        Integer s = sizeIndex.get(targetSize);
+        Integer r = recIndex.get(recName);
+        Integer m = metricIndex.get(metric);
+        if (fold < 1 || fold > nFolds || s == null || r == null || m == null) {
+            return Double.NaN;
+        }
+        return values[index(fold, s, r, m)];
+    }
+
+    /**
+     * Whether a recommender has values for a target size.
+     *
+     * @param targetSize
+     * @param recName
+     * @return
+     */
+    public boolean contains(int targetSize, String recName) {
+        for (int fold = 1; fold <= nFolds; fold++) {
+            for (String metric : metrics) {
+                if (!Double.isNaN(get(fold, targetSize, recName, metric))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sum of the values of a metric over the folds that have it.
+     *
+     * @param targetSize
+     * @param recName
+     * @param metric
+     * @return
+     */
+    public double sum(int targetSize, String recName, String metric) {
+        double sum = 0;
+        for (int fold = 1; fold <= nFolds; fold++) {
+            double value = get(fold, targetSize, recName, metric);
+            if (!Double.isNaN(value)) {
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    public int getNFolds() {
+        return nFolds;
+    }
+
+    public int[] getTargetSizes() {
+        return targetSizes.clone();
+    }
+
+    public List<String> getRecNames() {
+        return recNames;
+    }
+
+    public String[] getMetrics() {
+        return metrics.clone();
+    }
+
+    /**
+     * Writes the table through a temporary file, so that an interrupted run
+     * does not leave a partial table behind.
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void write(String path) throws IOException {
+        File file = new File(path);
+        File tmpFile = new File(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nFolds);
+            out.writeInt(targetSizes.length);
+            for (int targetSize : targetSizes) {
+                out.writeInt(targetSize);
+            }
+            out.writeInt(recNames.size());
+            for (String recName : recNames) {
+                out.writeUTF(recName);
+            }
+            out.writeInt(metrics.length);
+            for (String metric : metrics) {
+                out.writeUTF(metric);
+            }
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a table written by write.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static ResultsTable read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a results table: " + path);
+            }
+            int nFolds = in.readInt();
+            int[] targetSizes = new int[in.readInt()];
+            for (int s = 0; s < targetSizes.length; s++) {
+                targetSizes[s] = in.readInt();
+            }
+            List<String> recNames = new ArrayList<>();
+            for (int r = in.readInt(); r > 0; r--) {
+                recNames.add(in.readUTF());
+            }
+            String[] metrics = new String[in.readInt()];
+            for (int m = 0; m < metrics.length; m++) {
+                metrics[m] = in.readUTF();
+            }
+            ResultsTable table = new ResultsTable(nFolds, targetSizes, recNames, metrics);
+            for (int i = 0; i < table.values.length; i++) {
+                table.values[i] = in.readDouble();
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Builds a table from a TARGET_SAMPLING_FILE, for results of runs that
+     * did not write the binary table.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static ResultsTable parse(String path) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        String[] colHeads;
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            colHeads = in.readLine().split("\t");
+            String line;
+            while ((line = in.readLine()) != null) {
+                rows.add(line.split("\t"));
+            }
+        }
+
+        int nFolds = 0;
+        TreeSet<Integer> targetSizes = new TreeSet<>();
+        TreeSet<String> recNames = new TreeSet<>();
+        for (String[] row : rows) {
+            nFolds = Math.max(nFolds, Integer.valueOf(row[0]));
+            targetSizes.add(Integer.valueOf(row[1]));
+            recNames.add(row[2]);
+        }
+        String[] metrics = Arrays.copyOfRange(colHeads, 3, colHeads.length);
+        ResultsTable table = new ResultsTable(nFolds, targetSizes.stream().mapToInt(s -> s).toArray(), new ArrayList<>(recNames), metrics);
+        for (String[] row : rows) {
+            for (int m = 0; m < metrics.length; m++) {
+                table.put(Integer.valueOf(row[0]), Integer.valueOf(row[1]), row[2], metrics[m], Double.valueOf(row[3 + m]));
+            }
+        }
+        return table;
+    }
+}
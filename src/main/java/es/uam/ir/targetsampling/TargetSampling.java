@@ -9,62 +9,65 @@
 package es.uam.ir.targetsampling;
 
 import es.uam.ir.filler.Filler;
-import es.uam.eps.ir.ranksys.core.Recommendation;
-import es.uam.eps.ir.ranksys.fast.FastRecommendation;
 import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
 import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
-import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
-import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
 import es.uam.eps.ir.ranksys.fast.preference.FastPreferenceData;
-import es.uam.eps.ir.ranksys.fast.preference.SimpleFastPreferenceData;
-import es.uam.eps.ir.ranksys.metrics.AbstractRecommendationMetric;
-import es.uam.ir.ranksys.metrics.basic.Coverage;
-import es.uam.ir.ranksys.metrics.basic.NDCG;
-import es.uam.eps.ir.ranksys.metrics.basic.Precision;
-import es.uam.eps.ir.ranksys.metrics.basic.Recall;
-import es.uam.eps.ir.ranksys.metrics.rel.BinaryRelevanceModel;
+import es.uam.ir.ranksys.metrics.fast.FastCoverage;
+import es.uam.ir.ranksys.metrics.fast.FastNDCG;
+import es.uam.ir.ranksys.metrics.fast.FastPrecision;
+import es.uam.ir.ranksys.metrics.fast.FastRecall;
+import es.uam.ir.ranksys.metrics.fast.FastRecommendationMetric;
+import es.uam.ir.ranksys.metrics.fast.FastRelevanceModel;
+import es.uam.eps.ir.ranksys.mf.Factorization;
+import es.uam.eps.ir.ranksys.mf.Factorizer;
 import es.uam.eps.ir.ranksys.mf.als.HKVFactorizer;
-import es.uam.eps.ir.ranksys.mf.rec.MFRecommender;
-import es.uam.eps.ir.ranksys.nn.user.UserNeighborhoodRecommender;
-import es.uam.eps.ir.ranksys.nn.user.neighborhood.TopKUserNeighborhood;
-import es.uam.eps.ir.ranksys.nn.user.sim.UserSimilarity;
-import es.uam.eps.ir.ranksys.nn.user.sim.VectorCosineUserSimilarity;
+import es.uam.eps.ir.ranksys.nn.user.neighborhood.UserNeighborhood;
 import es.uam.eps.ir.ranksys.rec.Recommender;
 import es.uam.eps.ir.ranksys.rec.fast.FastRecommender;
-import es.uam.eps.ir.ranksys.rec.fast.basic.PopularityRecommender;
-import es.uam.eps.ir.ranksys.rec.runner.fast.FastFilters;
 import es.uam.ir.datagenerator.TruncateRatings;
+import es.uam.ir.targetsampling.FoldDataCache.FoldData;
+import es.uam.ir.util.IdxSet;
+import es.uam.ir.util.RandomSource;
 import es.uam.ir.util.Timer;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.function.Function;
 import java.util.function.IntPredicate;
 import java.util.stream.DoubleStream;
-import org.apache.commons.math3.stat.inference.TTest;
-import org.ranksys.formats.index.ItemsReader;
-import org.ranksys.formats.index.UsersReader;
-import static org.ranksys.formats.parsing.Parsers.lp;
-import org.ranksys.formats.preference.SimpleRatingPreferencesReader;
+import java.util.stream.IntStream;
 import es.uam.ir.ranksys.rec.runner.fast.FastSamplers;
+import es.uam.ir.ranksys.rec.runner.fast.NestedSampler;
+import es.uam.ir.ranksys.fast.preference.MappedFastPreferenceData;
 import es.uam.ir.crossvalidation.CrossValidation;
 import es.uam.ir.filler.Filler.Mode;
-import es.uam.ir.util.GetUsersAndItems;
-import java.io.ByteArrayInputStream;
+import es.uam.ir.util.UserItemIndex;
 import java.util.Set;
-import java.util.function.Supplier;
+import java.util.SplittableRandom;
 import java.util.logging.LogManager;
 import java.util.stream.Collectors;
-import org.ranksys.core.util.tuples.Tuple2id;
-import org.ranksys.core.util.tuples.Tuple2od;
+import es.uam.ir.ranksys.rec.fast.UserScores;
 import es.uam.ir.ranksys.rec.fast.basic.RandomRecommender;
 import es.uam.ir.ranksys.rec.fast.basic.AverageRatingRecommender;
+import es.uam.ir.ranksys.rec.fast.basic.PopularityRecommender;
+import es.uam.ir.ranksys.mf.rec.MFRecommender;
+import es.uam.ir.ranksys.nn.user.FastUserNeighborhoodRecommender;
 import es.uam.ir.ranksys.nn.user.NormUserNeighborhoodRecommenderWithMinimum;
-import java.io.FileNotFoundException;
+import es.uam.ir.ranksys.nn.user.neighborhood.CosineTopKUserNeighborhood;
+import es.uam.ir.ranksys.nn.user.neighborhood.PrefixUserNeighborhood;
 
 /**
  *
@@ -74,7 +77,9 @@ import java.io.FileNotFoundException;
 public class TargetSampling {
 
     private final Configuration conf;
+    private final RandomSource random;
     public final static String TARGET_SAMPLING_FILE = "target-sampling.txt";
+    public final static String TARGET_SAMPLING_TABLE_FILE = "target-sampling.bin";
     public final static String P_VALUES_FILE = "pvalues.txt";
     public final static String TIES_FILE = "ties.txt";
     public final static String TIES_AT_ZERO_FILE = "tiesAtZero.txt";
@@ -93,6 +98,18 @@ public class TargetSampling {
     public TargetSampling(
             Configuration conf) {
         this.conf = conf;
+        this.random = conf.getRandomSeed() == null ? new RandomSource() : new RandomSource(conf.getRandomSeed());
+    }
+
+    /**
+     * The stored iMF factors are tied to the seed they were trained with, so
+     * they are only reused across runs when the seed is configured.
+     */
+    private void printRandomSeed() {
+        System.out.println("Random seed: " + random.getSeed());
+        if (conf.getModelsPath() != null && conf.getRandomSeed() == null) {
+            System.out.println("Warning: random.seed is not set, so the iMF models stored under models.path will not be reused by later runs");
+        }
     }
 
     /**
@@ -101,6 +118,7 @@ public class TargetSampling {
      */
     public void runCrossValidation() throws IOException {
         Timer.start("Starting...");
+        printRandomSeed();
 
         for (int i = 0; i < METRIC_NAMES.length; i++) {
             METRIC_NAMES[i] += "@" + conf.getCutoff();
@@ -110,15 +128,18 @@ public class TargetSampling {
 
         // Read files
         Timer.start("Reading files...");
-        ByteArrayInputStream[] usersAndItemsInputStreams = GetUsersAndItems.run(conf.getDataPath() + "data.txt");
-        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(usersAndItemsInputStreams[0], lp));
-        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(usersAndItemsInputStreams[1], lp));
+        UserItemIndex usersAndItems = UserItemIndex.load(conf.getDataPath() + "data.txt");
+        FastUserIndex<Long> userIndex = usersAndItems.getUserIndex();
+        FastItemIndex<Long> itemIndex = usersAndItems.getItemIndex();
 
         Timer.done("");
 
-        Map<String, Map<String, double[]>> evalsPerUser = new HashMap<>();
-        int nUsersInCrossValidation = 0;
-        try (PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
+        Map<String, RecommenderFactory> recMap = getRecs(userIndex, itemIndex);
+        // The table of a previous run is stale as soon as the text results are rewritten
+        new File(conf.getResultsPath() + TARGET_SAMPLING_TABLE_FILE).delete();
+        ResultsTable results = new ResultsTable(conf.getNFolds(), conf.getTargetSizes(), new ArrayList<>(recMap.keySet()), METRIC_NAMES);
+        try (EvalStore evals = new EvalStore(conf.getTargetSizes(), new ArrayList<>(recMap.keySet()), METRIC_NAMES, conf.getNFolds(), userIndex.numUsers(), conf.getEvalsPath());
+                PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
                 PrintStream outExpectation = new PrintStream(conf.getResultsPath() + EXPECTED_INTERSECTION_RATIO_FILE)) {
             //Header
             outExpectation.println("fold\ttarget size\texpected intersection ratio in top n");
@@ -129,48 +150,36 @@ public class TargetSampling {
             out.println();
 
             //Run
-            for (int n : conf.getTargetSizes()) {
-                int targetSize = n;
-                nUsersInCrossValidation = 0;
-                for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
-                    System.out.println("Running fold " + currentFold);
-                    FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> testData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-test.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
-
-                    //Sampler:
-                    Function<Long, IntPredicate> sampler = FastSamplers.uniform(trainData, FastSamplers.inTestForUser(testData), targetSize);
-                    Function<Long, IntPredicate> notTrainFilter = FastFilters.notInTrain(trainData);
-                    Function<Long, IntPredicate> userFilter = FastFilters.and(sampler, notTrainFilter);
-
-                    runSplit(userIndex,
-                            itemIndex,
-                            nUsersInCrossValidation,
-                            targetSize,
-                            currentFold,
-                            trainData,
-                            positiveTrainData,
-                            testData,
-                            evalsPerUser,
-                            userFilter,
-                            out
-                    );
-
-                    nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
-                    double expectation = trainData.getUsersWithPreferences()
-                            .mapToDouble(user -> {
-                                long nu = itemIndex.getAllIidx().filter(item -> userFilter.apply(user).test(item)).count();
-                                if (nu == 0) {
-                                    return 1;
-                                }
-                                long k = Math.min(nu, 10);
-                                return k * 1.0 / nu;
-                            }).filter(v -> !Double.isInfinite(v) && !Double.isNaN(v)).sum() * 1.0 / trainData.numUsers();
-                    outExpectation.println(currentFold + "\t" + targetSize + "\t" + expectation);
+            FoldDataCache foldDataCache = new FoldDataCache(fold -> {
+                String trainPath = conf.getDataPath() + fold + "-data-train.txt";
+                FastPreferenceData<Long, Long> trainData = MappedFastPreferenceData.load(trainPath, userIndex, itemIndex);
+                FastPreferenceData<Long, Long> testData = MappedFastPreferenceData.load(conf.getDataPath() + fold + "-data-test.txt", userIndex, itemIndex);
+                return new FoldData(trainData, testData, TruncateRatings.run(trainData, conf.getThreshold()), samplers(fold, trainData, testData), models(fold, trainPath));
+            });
+            List<FoldCell> cells = new ArrayList<>();
+            for (int fold = 1; fold <= conf.getNFolds(); fold++) {
+                int currentFold = fold;
+                cells.add(new FoldCell(currentFold, () -> {
+                    FoldData foldData = foldDataCache.get(currentFold);
+                    evals.setNumUsers(currentFold, (int) foldData.getTrainData().getUsersWithPreferences().count());
+                    for (int targetSize : conf.getTargetSizes()) {
+                        double expectation = expectedIntersectionRatio(foldData, targetSize);
+                        outExpectation.println(currentFold + "\t" + targetSize + "\t" + expectation);
+                    }
+                    return null;
+                }));
+                for (String recName : recMap.keySet()) {
+                    cells.add(new FoldCell(currentFold, () -> {
+                        System.out.println("Running fold " + currentFold + ", " + recName);
+                        runSplit(userIndex, itemIndex, currentFold, foldDataCache.get(currentFold), recName, recMap.get(recName), evals, results, out);
+                        return null;
+                    }));
                 }
             }
+            runCells(cells, foldDataCache);
+            processEvals(evals, conf.getResultsPath());
         }
-        processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
+        results.write(conf.getResultsPath() + TARGET_SAMPLING_TABLE_FILE);
     }
 
     /**
@@ -180,6 +189,7 @@ public class TargetSampling {
      */
     public void runWithUnbiasedTest(String testPath) throws IOException {
         Timer.start("Starting...");
+        printRandomSeed();
 
         for (int i = 0; i < METRIC_NAMES.length; i++) {
             METRIC_NAMES[i] += "@" + conf.getCutoff();
@@ -189,15 +199,18 @@ public class TargetSampling {
 
         // Read files
         Timer.start("Reading files...");
-        ByteArrayInputStream[] usersAndItemsInputStreams = GetUsersAndItems.run(conf.getDataPath() + "data.txt");
-        FastUserIndex<Long> userIndex = SimpleFastUserIndex.load(UsersReader.read(usersAndItemsInputStreams[0], lp));
-        FastItemIndex<Long> itemIndex = SimpleFastItemIndex.load(ItemsReader.read(usersAndItemsInputStreams[1], lp));
-        FastPreferenceData<Long, Long> testData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(testPath, lp, lp), userIndex, itemIndex);
+        UserItemIndex usersAndItems = UserItemIndex.load(conf.getDataPath() + "data.txt");
+        FastUserIndex<Long> userIndex = usersAndItems.getUserIndex();
+        FastItemIndex<Long> itemIndex = usersAndItems.getItemIndex();
+        FastPreferenceData<Long, Long> testData = MappedFastPreferenceData.load(testPath, userIndex, itemIndex);
         Timer.done("");
 
-        Map<String, Map<String, double[]>> evalsPerUser = new HashMap<>();
-        int nUsersInCrossValidation = 0;
-        try (PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
+        Map<String, RecommenderFactory> recMap = getRecs(userIndex, itemIndex);
+        // The table of a previous run is stale as soon as the text results are rewritten
+        new File(conf.getResultsPath() + TARGET_SAMPLING_TABLE_FILE).delete();
+        ResultsTable results = new ResultsTable(conf.getNFolds(), conf.getTargetSizes(), new ArrayList<>(recMap.keySet()), METRIC_NAMES);
+        try (EvalStore evals = new EvalStore(conf.getTargetSizes(), new ArrayList<>(recMap.keySet()), METRIC_NAMES, conf.getNFolds(), userIndex.numUsers(), conf.getEvalsPath());
+                PrintStream out = new PrintStream(conf.getResultsPath() + TARGET_SAMPLING_FILE);
                 PrintStream outExpectation = new PrintStream(conf.getResultsPath() + EXPECTED_INTERSECTION_RATIO_FILE)) {
             //Header
             outExpectation.println("fold\ttarget size\texpected intersection ratio in top n");
@@ -208,183 +221,287 @@ public class TargetSampling {
             out.println();
 
             //Run
-            for (int n : conf.getTargetSizes()) {
-                int targetSize = n;
-                nUsersInCrossValidation = 0;
-
-                for (int currentFold = 1; currentFold <= conf.getNFolds(); currentFold++) {
-                    System.out.println("Running fold " + currentFold);
-                    FastPreferenceData<Long, Long> trainData = SimpleFastPreferenceData.load(SimpleRatingPreferencesReader.get().read(conf.getDataPath() + currentFold + "-data-train.txt", lp, lp), userIndex, itemIndex);
-                    FastPreferenceData<Long, Long> positiveTrainData = TruncateRatings.run(trainData, conf.getThreshold());
-                    //Sampler:
-                    Function<Long, IntPredicate> sampler = FastSamplers.uniform(trainData, FastSamplers.inTestForUser(testData), targetSize);
-                    Function<Long, IntPredicate> notTrainFilter = FastFilters.notInTrain(trainData);
-                    Function<Long, IntPredicate> userFilter = FastFilters.and(sampler, notTrainFilter);
-
-                    runSplit(userIndex, itemIndex, nUsersInCrossValidation, targetSize, currentFold, trainData, positiveTrainData, testData, evalsPerUser, userFilter, out);
-                    Timer.done("...");
-
-                    nUsersInCrossValidation += trainData.getUsersWithPreferences().count();
-                    double expectation = trainData.getUsersWithPreferences()
-                            .mapToDouble(user -> {
-                                long nu = itemIndex.getAllIidx().filter(item -> userFilter.apply(user).test(item)).count();
-                                if (nu == 0) {
-                                    return 1;
-                                }
-                                long k = Math.min(nu, 10);
-                                return k * 1.0 / nu;
-                            }).filter(v -> !Double.isInfinite(v) && !Double.isNaN(v)).sum() * 1.0 / trainData.numUsers();
-                    outExpectation.println(targetSize + "\t" + expectation);
+            FoldDataCache foldDataCache = new FoldDataCache(fold -> {
+                String trainPath = conf.getDataPath() + fold + "-data-train.txt";
+                FastPreferenceData<Long, Long> trainData = MappedFastPreferenceData.load(trainPath, userIndex, itemIndex);
+                return new FoldData(trainData, testData, TruncateRatings.run(trainData, conf.getThreshold()), samplers(fold, trainData, testData), models(fold, trainPath));
+            });
+            List<FoldCell> cells = new ArrayList<>();
+            for (int fold = 1; fold <= conf.getNFolds(); fold++) {
+                int currentFold = fold;
+                cells.add(new FoldCell(currentFold, () -> {
+                    FoldData foldData = foldDataCache.get(currentFold);
+                    evals.setNumUsers(currentFold, (int) foldData.getTrainData().getUsersWithPreferences().count());
+                    for (int targetSize : conf.getTargetSizes()) {
+                        double expectation = expectedIntersectionRatio(foldData, targetSize);
+                        outExpectation.println(targetSize + "\t" + expectation);
+                    }
+                    return null;
+                }));
+                for (String recName : recMap.keySet()) {
+                    cells.add(new FoldCell(currentFold, () -> {
+                        System.out.println("Running fold " + currentFold + ", " + recName);
+                        runSplit(userIndex, itemIndex, currentFold, foldDataCache.get(currentFold), recName, recMap.get(recName), evals, results, out);
+                        return null;
+                    }));
                 }
             }
+            runCells(cells, foldDataCache);
+            processEvals(evals, conf.getResultsPath());
         }
-        processEvals(evalsPerUser, conf.getResultsPath(), nUsersInCrossValidation);
+        results.write(conf.getResultsPath() + TARGET_SAMPLING_TABLE_FILE);
+    }
+
+    /**
+     * Runs the cells concurrently on a bounded pool of conf.getNThreads()
+     * threads, and waits for all of them to finish. The data of a fold is
+     * evicted from the cache as soon as all the cells of the fold are done.
+     *
+     * @param cells
+     * @param foldDataCache
+     * @throws IOException
+     */
+    private void runCells(List<FoldCell> cells, FoldDataCache foldDataCache) throws IOException {
+        AtomicIntegerArray pendingCells = new AtomicIntegerArray(conf.getNFolds());
+        for (FoldCell cell : cells) {
+            pendingCells.incrementAndGet(cell.fold - 1);
+        }
+        List<Callable<Void>> evictingCells = new ArrayList<>();
+        for (FoldCell cell : cells) {
+            evictingCells.add(() -> {
+                try {
+                    return cell.task.call();
+                } finally {
+                    if (pendingCells.decrementAndGet(cell.fold - 1) == 0) {
+                        foldDataCache.evict(cell.fold);
+                    }
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(conf.getNThreads());
+        try {
+            for (Future<Void> cell : executor.invokeAll(evictingCells)) {
+                cell.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdown();
+            foldDataCache.evictAll();
+        }
+    }
+
+    /**
+     * Target samples of each user of a fold for each target size. Samples are
+     * drawn independently for each target size, or nested up to the largest
+     * target size smaller than the number of items.
+     */
+    private Map<Integer, Function<Long, IntPredicate>> samplers(int fold, FastPreferenceData<Long, Long> trainData, FastPreferenceData<Long, Long> testData) {
+        Map<Long, IdxSet> testSets = FastSamplers.inTestForUser(testData);
+        NestedSampler<Long> nestedSampler = null;
+        if (conf.isNestedSampling()) {
+            int maxSize = Arrays.stream(conf.getTargetSizes()).filter(n -> n < trainData.numItems()).max().orElse(0);
+            nestedSampler = FastSamplers.nestedUniform(trainData, testSets, maxSize, random.split("sampler", fold));
+        }
+
+        Map<Integer, Function<Long, IntPredicate>> samplers = new HashMap<>();
+        for (int targetSize : conf.getTargetSizes()) {
+            samplers.put(targetSize, nestedSampler != null
+                    ? nestedSampler.sampler(targetSize)
+                    : FastSamplers.uniform(trainData, testSets, targetSize, random.split(fold, targetSize).split("sampler")));
+        }
+        return samplers;
+    }
+
+    /**
+     * Cache of the models of a fold, stored in files if a models path is
+     * configured.
+     */
+    private ModelCache models(int fold, String trainPath) {
+        if (conf.getModelsPath() == null) {
+            return new ModelCache();
+        }
+        return new ModelCache(conf.getModelsPath() + fold + "-", new File(trainPath).lastModified());
+    }
+
+    /**
+     * Average over the users of a fold of the ratio of admissible items that
+     * fit in the cutoff, where the admissible items of a user are the
+     * target sample minus the user's train items. The number of admissible
+     * items is the size of the materialized user filter, so the catalog is
+     * not scanned.
+     */
+    private double expectedIntersectionRatio(FoldData foldData, int targetSize) {
+        FastPreferenceData<Long, Long> trainData = foldData.getTrainData();
+        return trainData.getUidxWithPreferences()
+                .mapToDouble(uidx -> {
+                    int nu = foldData.getUserFilter(targetSize, uidx).size();
+                    if (nu == 0) {
+                        return 1;
+                    }
+                    int k = Math.min(nu, 10);
+                    return k * 1.0 / nu;
+                }).sum() * 1.0 / trainData.numUsers();
     }
 
     private void runSplit(
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
-            int nUsersInCrossValidation,
-            int targetSize,
             int currentFold,
-            FastPreferenceData<Long, Long> trainData,
-            FastPreferenceData<Long, Long> positiveTrainData,
-            FastPreferenceData<Long, Long> testData,
-            Map<String, Map<String, double[]>> evalsPerUser,
-            Function<Long, IntPredicate> userFilter,
+            FoldData foldData,
+            String recName,
+            RecommenderFactory recFactory,
+            EvalStore evals,
+            ResultsTable results,
             PrintStream out) throws IOException {
 
+        FastPreferenceData<Long, Long> trainData = foldData.getTrainData();
+        FastPreferenceData<Long, Long> testData = foldData.getTestData();
+        RandomSource foldRandom = random.split(currentFold);
+
         Set<Long> trainUsers = trainData.getUsersWithPreferences().collect(Collectors.toSet());
         Set<Long> targetUsers = trainUsers;
-        Filler<Long, Long> filler = new Filler<>(conf.getFillMode(), itemIndex, userIndex, trainData);
+        Filler<Long, Long> filler = new Filler<>(conf.getFillMode(), itemIndex, userIndex, trainData, foldRandom.split("filler", evals.getRecNames().indexOf(recName)));
 
         /////////////
         // METRICS //
         /////////////
-        Map<String, AbstractRecommendationMetric<Long, Long>> metrics = new HashMap<>();
+        Map<String, FastRecommendationMetric> metrics = new HashMap<>();
 
         int cutoff = conf.getCutoff();
         int threshold = conf.getThreshold();
-        BinaryRelevanceModel<Long, Long> binRel = new BinaryRelevanceModel<>(false, testData, threshold);
-        NDCG.NDCGRelevanceModel ndcgModel = new NDCG.NDCGRelevanceModel<>(false, testData, threshold);
-        metrics.put("P@" + cutoff, new Precision<>(cutoff, binRel));
-        metrics.put("nDCG@" + cutoff, new NDCG<>(cutoff, ndcgModel));
-        metrics.put("Recall@" + cutoff, new Recall<>(cutoff, binRel));
-        metrics.put("Coverage@" + cutoff, new Coverage<>(cutoff));
+        FastRelevanceModel relModel = foldData.getRelevanceModel(threshold, cutoff);
+        metrics.put("P@" + cutoff, new FastPrecision(cutoff, relModel));
+        metrics.put("nDCG@" + cutoff, new FastNDCG(cutoff, relModel));
+        metrics.put("Recall@" + cutoff, new FastRecall(cutoff, relModel));
+        metrics.put("Coverage@" + cutoff, new FastCoverage(cutoff));
 
         ////////////////////////////////////////////////
         // GENERATING RECOMMENDATIONS AND EVALUATIONS //
         ////////////////////////////////////////////////
-        Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
-        recMap.put("Random", () -> new RandomRecommender<>(userIndex, itemIndex));
-        recMap.put("Popularity", () -> new PopularityRecommender<>(trainData));
-        recMap.put("Average Rating", () -> new AverageRatingRecommender<>(trainData, threshold));
-
-        if (conf.isAllRecs()) {
-            recMap.putAll(getAllRecs(userIndex, itemIndex, trainData, positiveTrainData));
-        } else {
-            recMap.putAll(getFullAndTestRecs(userIndex, itemIndex, trainData, positiveTrainData));
-        }
-
         eval(
                 userIndex,
                 itemIndex,
-                nUsersInCrossValidation,
-                targetSize,
                 currentFold,
                 targetUsers,
-                userFilter,
-                recMap,
+                foldData,
+                recName,
+                recFactory,
+                foldRandom,
                 metrics,
-                evalsPerUser,
+                evals,
+                results,
                 out,
                 filler);
     }
 
+    /**
+     * Evaluates a recommender for all the target sizes. Each user is scored
+     * once, and the recommendation of each target size is ranked from the
+     * same scores among the candidate items of the user for the target size,
+     * or under the user filter of the target size when the target sample
+     * covers the whole catalog. Random recommendations and fills are drawn
+     * independently for each target size and recommender.
+     */
     private void eval(
             FastUserIndex<Long> userIndex,
             FastItemIndex<Long> itemIndex,
-            int nUsersInCrossValidation,
-            int targetSize,
             int currentFold,
             Set<Long> targetUsers,
-            Function<Long, IntPredicate> userFilter,
-            Map<String, Supplier<Recommender<Long, Long>>> recMap,
-            Map<String, AbstractRecommendationMetric<Long, Long>> metrics,
-            Map<String, Map<String, double[]>> evalsPerUser,
+            FoldData foldData,
+            String recName,
+            RecommenderFactory recFactory,
+            RandomSource foldRandom,
+            Map<String, FastRecommendationMetric> metrics,
+            EvalStore evals,
+            ResultsTable results,
             PrintStream out,
-            Filler<Long, Long> filler) {
+            Filler<Long, Long> filler) throws IOException {
 
         int m = userIndex.numUsers();
         int mTrain = targetUsers.size();
-        recMap.keySet().stream().forEachOrdered(recNameAux -> {
-            String recName = targetSize + "\t" + recNameAux;
-            if (!evalsPerUser.containsKey(recName)) {
-                Map<String, double[]> values = new HashMap<>();
-                for (String metric : METRIC_NAMES) {
-                    values.put(metric, new double[m * conf.getNFolds()]);
-                }
-                evalsPerUser.put(recName, values);
-            }
-
-            System.out.print("Running " + recName);
-            FastRecommender<Long, Long> recommendation = (FastRecommender<Long, Long>) recMap.get(recNameAux).get();
-            Function<Long, Recommendation<Long, Long>> recProvider = user -> {
-                FastRecommendation rec = recommendation.getRecommendation(userIndex.user2uidx(user), conf.getCutoff(), userFilter.apply(user));
-                return new Recommendation<>(userIndex.uidx2user(rec.getUidx()), rec.getIidxs().stream().map(iv -> new Tuple2od<>(itemIndex.iidx2item(iv.v1), iv.v2)).collect(Collectors.toList()));
-            };
+        int[] targetSizes = conf.getTargetSizes();
+        List<Function<Long, IntPredicate>> userFilters = Arrays.stream(targetSizes)
+                .mapToObj(foldData::getUserFilter)
+                .collect(Collectors.toList());
+
+        Object timer = currentFold + "\t" + recName;
+        Timer.start(timer);
+        FastRecommender<Long, Long> recommender = (FastRecommender<Long, Long>) recFactory.create(foldData, foldRandom);
+        List<FastRecommender<Long, Long>> sizeRecommenders = Arrays.stream(targetSizes)
+                .mapToObj(targetSize -> recommender instanceof RandomRecommender
+                        ? ((RandomRecommender<Long, Long>) recommender).split(targetSize)
+                        : recommender)
+                .collect(Collectors.toList());
+
+        // Values of each target size and metric, by user index
+        double[][][] actualValues = new double[targetSizes.length][METRIC_NAMES.length][m];
 
-            Map<String, double[]> actualValues = new HashMap<>();
-            for (String metric : METRIC_NAMES) {
-                actualValues.put(metric, new double[m]);
+        int cutoff = conf.getCutoff();
+        FastRecommendationMetric[] metricList = Arrays.stream(METRIC_NAMES)
+                .map(metrics::get)
+                .toArray(FastRecommendationMetric[]::new);
+        targetUsers.stream().parallel().forEach(user -> {
+            int uidx = userIndex.user2uidx(user);
+            UserScores scores = UserScores.of(recommender, uidx);
+            int[] iidxs = new int[cutoff];
+            for (int s = 0; s < targetSizes.length; s++) {
+                IntPredicate userFilter = userFilters.get(s).apply(user);
+                int[] candidates = foldData.getCandidates(targetSizes[s], user);
+                UserScores sizeScores = sizeRecommenders.get(s) == recommender
+                        ? scores
+                        : UserScores.of(sizeRecommenders.get(s), uidx);
+                int length = candidates != null
+                        ? sizeScores.select(cutoff, candidates, iidxs)
+                        : sizeScores.select(cutoff, userFilter, iidxs);
+                length = filler.fill(iidxs, length, cutoff, userFilter, uidx, targetSizes[s]);
+                for (int j = 0; j < METRIC_NAMES.length; j++) {
+                    actualValues[s][j][uidx] = metricList[j].evaluate(uidx, iidxs, length);
+                }
             }
+        });
 
-            targetUsers.stream().parallel()
-                    .map(user -> recProvider.apply(user))
-                    .map(rec -> {
-                        List<Tuple2id> items = rec.getItems()
-                        .stream()
-                        .map(ip -> new Tuple2id(itemIndex.item2iidx(ip.v1), ip.v2))
-                        .collect(Collectors.toList());
-                        List<Tuple2od<Long>> newItems = filler
-                        .fill(items, conf.getCutoff(), userFilter.apply(rec.getUser()), rec.getUser())
-                        .stream()
-                        .map(ip -> new Tuple2od<>(itemIndex.iidx2item(ip.v1), ip.v2))
-                        .collect(Collectors.toList());
-                        return new Recommendation<>(rec.getUser(), newItems);
-                    }).forEachOrdered(rec -> {
-                        metrics.forEach((metricName, metric) -> {
-                            actualValues.get(metricName)[userIndex.user2uidx(rec.getUser())] = metric.evaluate(rec);
-                        });
-                    });
-
-            Map<String, double[]> pastValues = evalsPerUser.get(recName);
-
+        for (int s = 0; s < targetSizes.length; s++) {
+            String sizeRecName = targetSizes[s] + "\t" + recName;
             int i = 0;
             for (Long user : targetUsers) {
                 int u = userIndex.user2uidx(user);
-                for (String metricName : METRIC_NAMES) {
-                    double value = actualValues.get(metricName)[u];
-                    pastValues.get(metricName)[nUsersInCrossValidation + i] = value;
+                for (int j = 0; j < METRIC_NAMES.length; j++) {
+                    evals.put(targetSizes[s], recName, METRIC_NAMES[j], currentFold, i, actualValues[s][j][u]);
                 }
                 i++;
             }
 
-            //Values
-            out.print(currentFold);
-            out.print("\t");
-            out.print(recName);
-            for (String metricName : METRIC_NAMES) {
-                out.print("\t" + DoubleStream.of(actualValues.get(metricName)).sum() / mTrain);
+            //Values (one println per row, so that concurrent cells do not interleave)
+            StringBuilder row = new StringBuilder(currentFold + "\t" + sizeRecName);
+            for (int j = 0; j < METRIC_NAMES.length; j++) {
+                double value = DoubleStream.of(actualValues[s][j]).sum() / mTrain;
+                results.put(currentFold, targetSizes[s], recName, METRIC_NAMES[j], value);
+                row.append("\t" + value);
             }
-            out.println();
-
-            Timer.done("   done");
-        });
+            out.println(row);
+        }
 
+        Timer.done(timer, "Running fold " + currentFold + "\t" + recName + "   done");
     }
 
-    private void processEvals(Map<String, Map<String, double[]>> evalsPerUser, String resultsPath, int nUsersInCrossValidation) throws FileNotFoundException {
+    /**
+     * Writes the p-values and ties of every pair of recommenders with the
+     * same target size. Pairs, and the resamples of their tests, are computed
+     * in parallel on a pool of conf.getNThreads() threads.
+     */
+    private void processEvals(EvalStore evals, String resultsPath) throws IOException {
+        int nUsersInCrossValidation = evals.getNumUsers();
+        ResamplingTests resamplingTests = conf.getNResamples() > 0
+                ? new ResamplingTests(conf.getNResamples(), random.split("significance"))
+                : null;
         try (
                 PrintStream outPvalues = new PrintStream(resultsPath + P_VALUES_FILE);
                 PrintStream outTiesAtZero = new PrintStream(resultsPath + TIES_AT_ZERO_FILE);
@@ -394,6 +511,9 @@ public class TargetSampling {
             outPvalues.print("recommender system 1\trecommender system 2");
             for (String metric : METRIC_NAMES) {
                 outPvalues.print("\t" + metric);
+                if (resamplingTests != null) {
+                    outPvalues.print("\t" + metric + " permutation\t" + metric + " bootstrap\t" + metric + " Wilcoxon");
+                }
             }
             outPvalues.println();
 
@@ -411,80 +531,103 @@ public class TargetSampling {
             }
             outTiesAtZero.println();
 
-            List<String> recNames = new ArrayList<>(evalsPerUser.keySet());
-            TTest ttest = new TTest();
-
-            for (String recName : recNames) {
-                Map<String, double[]> values = evalsPerUser.get(recName);
-                for (String metric : METRIC_NAMES) {
-                    double[] oldValues = values.get(metric);
-                    values.put(metric, Arrays.copyOf(oldValues, nUsersInCrossValidation));
+            // Pairs of recommenders with the same target size
+            List<String> recNames = evals.getRecNames();
+            List<int[]> pairs = new ArrayList<>();
+            for (int targetSize : evals.getTargetSizes()) {
+                for (int i = 0; i < recNames.size(); i++) {
+                    for (int j = i + 1; j < recNames.size(); j++) {
+                        pairs.add(new int[]{targetSize, i, j});
+                    }
                 }
             }
-
-            for (int i = 0; i < recNames.size(); i++) {
-                String rec1 = recNames.get(i);
-                String rec1Name = rec1.split("\t")[1];
-                int n1 = Integer.valueOf(rec1.split("\t")[0]);
-                Map<String, double[]> values1 = evalsPerUser.get(rec1);
-
-                for (int j = i + 1; j < recNames.size(); j++) {
-                    String rec2 = recNames.get(j);
-                    String rec2Name = rec2.split("\t")[1];
-                    int n2 = Integer.valueOf(rec2.split("\t")[0]);
-                    if (n1 != n2) {
-                        continue;
+            ForkJoinPool pool = new ForkJoinPool(conf.getNThreads());
+            try {
+                pool.submit(() -> pairs.parallelStream().forEach(pair -> {
+                    String rec1 = recNames.get(pair[1]);
+                    String rec2 = recNames.get(pair[2]);
+                    PairedStatistics[] stats = PairedStatistics.of(evals, pair[0], rec1, rec2, resamplingTests != null);
+
+                    StringBuilder pValuesRow = new StringBuilder(pair[0] + "\t" + rec1 + "\t" + rec2);
+                    StringBuilder tiesRow = new StringBuilder(pValuesRow);
+                    StringBuilder tiesAtZeroRow = new StringBuilder(pValuesRow);
+                    for (int m = 0; m < stats.length; m++) {
+                        PairedStatistics metricStats = stats[m];
+                        pValuesRow.append("\t" + metricStats.getPValue());
+                        if (resamplingTests != null) {
+                            double[] differences = metricStats.getDifferences();
+                            pValuesRow.append("\t" + resamplingTests.permutationTest(differences, pair[0], pair[1], pair[2], m));
+                            pValuesRow.append("\t" + resamplingTests.bootstrapTest(differences, pair[0], pair[1], pair[2], m));
+                            pValuesRow.append("\t" + ResamplingTests.wilcoxonTest(differences));
+                        }
+                        tiesRow.append("\t" + metricStats.getNTies() * 1.0 / nUsersInCrossValidation);
+                        tiesAtZeroRow.append("\t" + metricStats.getNTiesAtZero() * 1.0 / nUsersInCrossValidation);
                     }
-                    outPvalues.print(n1 + "\t");
-                    outTies.print(n1 + "\t");
-                    outTiesAtZero.print(n1 + "\t");
-
-                    Map<String, double[]> values2 = evalsPerUser.get(rec2);
-                    outPvalues.print(rec1Name + "\t" + rec2Name);
-                    outTies.print(rec1Name + "\t" + rec2Name);
-                    outTiesAtZero.print(rec1Name + "\t" + rec2Name);
-                    for (String metric : METRIC_NAMES) {
-                        double p_value = ttest.pairedTTest(values1.get(metric), values2.get(metric));
-                        double nTies = nTies(values1.get(metric), values2.get(metric));
-                        double nTiesAtZero = nTiesAtZero(values1.get(metric), values2.get(metric));
-                        outPvalues.print("\t" + p_value);
-                        outTies.print("\t" + nTies * 1.0 / nUsersInCrossValidation);
-                        outTiesAtZero.print("\t" + nTiesAtZero * 1.0 / nUsersInCrossValidation);
+                    // Rows are written as pairs finish, the three files in the same order
+                    synchronized (outPvalues) {
+                        outPvalues.println(pValuesRow);
+                        outTies.println(tiesRow);
+                        outTiesAtZero.println(tiesAtZeroRow);
                     }
-                    outPvalues.println();
-                    outTies.println();
-                    outTiesAtZero.println();
-                }
+                })).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            } catch (ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            } finally {
+                pool.shutdown();
             }
         }
     }
 
-    private Map<String, Supplier<Recommender<Long, Long>>> getAllRecs(
+    /**
+     * Builds a recommender from the data of a fold.
+     */
+    private interface RecommenderFactory {
+
+        Recommender<Long, Long> create(FoldData foldData, RandomSource random) throws IOException;
+    }
+
+    private Map<String, RecommenderFactory> getRecs(
             FastUserIndex<Long> userIndex,
-            FastItemIndex<Long> itemIndex,
-            FastPreferenceData<Long, Long> trainData,
-            FastPreferenceData<Long, Long> positiveTrainData) {
-        Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
+            FastItemIndex<Long> itemIndex) {
+        Map<String, RecommenderFactory> recMap = new HashMap<>();
+        int threshold = conf.getThreshold();
+        recMap.put("Random", (foldData, random) -> new RandomRecommender<>(userIndex, itemIndex, random.split("random")));
+        recMap.put("Popularity", (foldData, random) -> new PopularityRecommender<>(foldData.getTrainData()));
+        recMap.put("Average Rating", (foldData, random) -> new AverageRatingRecommender<>(foldData.getTrainData(), threshold));
+
+        if (conf.isAllRecs()) {
+            recMap.putAll(getAllRecs(userIndex, itemIndex));
+        } else {
+            recMap.putAll(getFullAndTestRecs(userIndex, itemIndex));
+        }
+        return recMap;
+    }
+
+    private Map<String, RecommenderFactory> getAllRecs(
+            FastUserIndex<Long> userIndex,
+            FastItemIndex<Long> itemIndex) {
+        Map<String, RecommenderFactory> recMap = new HashMap<>();
 
-        UserSimilarity<Long> sim = new VectorCosineUserSimilarity<>(trainData, 0.5, true);
         for (int k : conf.getKnnParamK()) {
-            recMap.put("kNN (k=" + k + ")", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, k), 1));
+            recMap.put("kNN (k=" + k + ")", (foldData, random) -> new FastUserNeighborhoodRecommender<>(foldData.getPositiveTrainData(), neighborhood(foldData, k), 1));
         }
 
         for (int k : conf.getNormKnnParamK()) {
             for (int min : conf.getNormKnnParamMin()) {
-                recMap.put("Normalized kNN (k=" + k + ", min=" + min + ")", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
-                        positiveTrainData,
-                        new TopKUserNeighborhood<>(sim, k), 1, min));
+                recMap.put("Normalized kNN (k=" + k + ", min=" + min + ")", (foldData, random) -> new NormUserNeighborhoodRecommenderWithMinimum<>(
+                        foldData.getPositiveTrainData(),
+                        neighborhood(foldData, k), 1, min));
             }
         }
 
-        int numIter = 20;
         for (int k : conf.getImfParamK()) {
             for (double lambda : conf.getImfParamLambda()) {
                 for (double alpha : conf.getImfParamAlpha()) {
-                    recMap.put("iMF (k=" + k + ", lambda=" + lambda + ", alpha=" + alpha + ")", () -> new MFRecommender<>(userIndex, itemIndex,
-                            new HKVFactorizer<Long, Long>(lambda, (double x) -> 1 + alpha * x, numIter).factorize(k, trainData)));
+                    recMap.put("iMF (k=" + k + ", lambda=" + lambda + ", alpha=" + alpha + ")", (foldData, random) -> new MFRecommender<>(userIndex, itemIndex,
+                            factorization(foldData, k, lambda, alpha, random.split("imf"))));
                 }
             }
         }
@@ -492,74 +635,103 @@ public class TargetSampling {
         return recMap;
     }
 
-    private Map<String, Supplier<Recommender<Long, Long>>> getFullAndTestRecs(
+    private Map<String, RecommenderFactory> getFullAndTestRecs(
             FastUserIndex<Long> userIndex,
-            FastItemIndex<Long> itemIndex,
-            FastPreferenceData<Long, Long> trainData,
-            FastPreferenceData<Long, Long> positiveTrainData) {
-        Map<String, Supplier<Recommender<Long, Long>>> recMap = new HashMap<>();
+            FastItemIndex<Long> itemIndex) {
+        Map<String, RecommenderFactory> recMap = new HashMap<>();
 
-        UserSimilarity<Long> sim = new VectorCosineUserSimilarity<>(trainData, 0.5, true);
         if (conf.getKnnFullParamK() == conf.getKnnTestParamK()) {
-            recMap.put("kNN (full/test)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnFullParamK()), 1));
+            recMap.put("kNN (full/test)", (foldData, random) -> new FastUserNeighborhoodRecommender<>(foldData.getPositiveTrainData(), neighborhood(foldData, conf.getKnnFullParamK()), 1));
         } else {
-            recMap.put("kNN (full)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnFullParamK()), 1));
-            recMap.put("kNN (test)", () -> new UserNeighborhoodRecommender<>(positiveTrainData, new TopKUserNeighborhood<>(sim, conf.getKnnTestParamK()), 1));
+            recMap.put("kNN (full)", (foldData, random) -> new FastUserNeighborhoodRecommender<>(foldData.getPositiveTrainData(), neighborhood(foldData, conf.getKnnFullParamK()), 1));
+            recMap.put("kNN (test)", (foldData, random) -> new FastUserNeighborhoodRecommender<>(foldData.getPositiveTrainData(), neighborhood(foldData, conf.getKnnTestParamK()), 1));
         }
 
         if (conf.getNormKnnFullParamK() == conf.getNormKnnTestParamK()
                 && conf.getNormKnnFullParamMin() == conf.getNormKnnTestParamMin()) {
-            recMap.put("Normalized kNN (full/test)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
-                    positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
+            recMap.put("Normalized kNN (full/test)", (foldData, random) -> new NormUserNeighborhoodRecommenderWithMinimum<>(
+                    foldData.getPositiveTrainData(),
+                    neighborhood(foldData, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
         } else {
-            recMap.put("Normalized kNN (full)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
-                    positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
-            recMap.put("Normalized kNN (test)", () -> new NormUserNeighborhoodRecommenderWithMinimum<>(
-                    positiveTrainData,
-                    new TopKUserNeighborhood<>(sim, conf.getNormKnnTestParamK()), 1, conf.getNormKnnTestParamMin()));
+            recMap.put("Normalized kNN (full)", (foldData, random) -> new NormUserNeighborhoodRecommenderWithMinimum<>(
+                    foldData.getPositiveTrainData(),
+                    neighborhood(foldData, conf.getNormKnnFullParamK()), 1, conf.getNormKnnFullParamMin()));
+            recMap.put("Normalized kNN (test)", (foldData, random) -> new NormUserNeighborhoodRecommenderWithMinimum<>(
+                    foldData.getPositiveTrainData(),
+                    neighborhood(foldData, conf.getNormKnnTestParamK()), 1, conf.getNormKnnTestParamMin()));
         }
 
-        int numIter = 20;
         if (conf.getImfFullParamK() == conf.getImfTestParamK()
                 && conf.getImfFullParamLambda() == conf.getImfTestParamLambda()
                 && conf.getImfFullParamAlpha() == conf.getImfTestParamAlpha()) {
-            recMap.put("iMF (full/test)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfFullParamLambda(),
-                            (double x) -> 1 + conf.getImfFullParamAlpha() * x, numIter).factorize(
-                            conf.getImfFullParamK(), trainData)));
+            recMap.put("iMF (full/test)", (foldData, random) -> new MFRecommender<>(userIndex, itemIndex,
+                    factorization(foldData, conf.getImfFullParamK(), conf.getImfFullParamLambda(), conf.getImfFullParamAlpha(), random.split("imf"))));
         } else {
-            recMap.put("iMF (full)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfFullParamLambda(),
-                            (double x) -> 1 + conf.getImfFullParamAlpha() * x, numIter).factorize(
-                            conf.getImfFullParamK(), trainData)));
-            recMap.put("iMF (test)", () -> new MFRecommender<>(userIndex, itemIndex,
-                    new HKVFactorizer<Long, Long>(conf.getImfTestParamLambda(),
-                            (double x) -> 1 + conf.getImfTestParamAlpha() * x, numIter).factorize(
-                            conf.getImfTestParamK(), trainData)));
+            recMap.put("iMF (full)", (foldData, random) -> new MFRecommender<>(userIndex, itemIndex,
+                    factorization(foldData, conf.getImfFullParamK(), conf.getImfFullParamLambda(), conf.getImfFullParamAlpha(), random.split("imf"))));
+            recMap.put("iMF (test)", (foldData, random) -> new MFRecommender<>(userIndex, itemIndex,
+                    factorization(foldData, conf.getImfTestParamK(), conf.getImfTestParamLambda(), conf.getImfTestParamAlpha(), random.split("imf"))));
         }
         return recMap;
     }
 
-    private static int nTies(double[] v1, double[] v2) {
-        int nTies = 0;
-        for (int i = 0; i < v1.length; i++) {
-            if (Double.compare(v1[i], v2[i]) == 0) {
-                nTies++;
-            }
+    /**
+     * Top k neighbors of each user by cosine similarity. The neighbors are
+     * computed once per fold for the largest k of the configured kNN
+     * recommenders, sorted by decreasing similarity, and each k reads a
+     * prefix of them.
+     */
+    private UserNeighborhood<Long> neighborhood(FoldData foldData, int k) throws IOException {
+        FastPreferenceData<Long, Long> trainData = foldData.getTrainData();
+        int kMax = maxNeighbors();
+        UserNeighborhood<Long> neighborhood = foldData.getModels().getNeighborhood("knn-k" + kMax, trainData,
+                () -> new CosineTopKUserNeighborhood<>(trainData, 0.5, kMax));
+        return new PrefixUserNeighborhood<>(neighborhood, k);
+    }
+
+    /**
+     * Largest k of the configured kNN recommenders.
+     */
+    private int maxNeighbors() {
+        if (conf.isAllRecs()) {
+            return IntStream.concat(IntStream.of(conf.getKnnParamK()), IntStream.of(conf.getNormKnnParamK())).max().orElse(0);
         }
-        return nTies;
+        return IntStream.of(conf.getKnnFullParamK(), conf.getKnnTestParamK(), conf.getNormKnnFullParamK(), conf.getNormKnnTestParamK()).max().getAsInt();
     }
 
-    private static int nTiesAtZero(double[] v1, double[] v2) {
-        int nTiesAtZero = 0;
-        for (int i = 0; i < v1.length; i++) {
-            if (Double.compare(v1[i], v2[i]) == 0 && Double.compare(v1[i], 0.0) == 0) {
-                nTiesAtZero++;
-            }
+    /**
+     * iMF factorization of a fold, trained once per fold and hyperparameters.
+     */
+    private static Factorization<Long, Long> factorization(FoldData foldData, int k, double lambda, double alpha, RandomSource random) throws IOException {
+        FastPreferenceData<Long, Long> trainData = foldData.getTrainData();
+        int numIter = 20;
+        return foldData.getModels().getFactorization("imf-k" + k + "-lambda" + lambda + "-alpha" + alpha, random.getSeed(), trainData, trainData,
+                () -> factorize(new HKVFactorizer<Long, Long>(lambda, (double x) -> 1 + alpha * x, numIter), k, trainData, random));
+    }
+
+    /**
+     * Matrix factorization with the usual random initialization of the
+     * factors, drawn from a seeded generator.
+     */
+    private static Factorization<Long, Long> factorize(Factorizer<Long, Long> factorizer, int k, FastPreferenceData<Long, Long> trainData, RandomSource random) {
+        SplittableRandom rnd = random.get(k);
+        Factorization<Long, Long> factorization = new Factorization<>(trainData, trainData, k, x -> Math.sqrt(1.0 / k) * rnd.nextDouble());
+        factorizer.factorize(factorization, trainData);
+        return factorization;
+    }
+
+    /**
+     * A task of the run on the data of a fold.
+     */
+    private static class FoldCell {
+
+        private final int fold;
+        private final Callable<Void> task;
+
+        public FoldCell(int fold, Callable<Void> task) {
+            this.fold = fold;
+            this.task = task;
         }
-        return nTiesAtZero;
     }
 
 }
@@ -0,0 +1,202 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable set of indices in [0, n). Sets are stored either as a bitmap of
+ * n bits or as a sorted array of indices, whichever takes less memory, so
+ * membership is a bit test or a binary search.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public abstract class IdxSet implements IntPredicate {
+
+    /**
+     * Set of the given indices. The array may be unsorted and contain
+     * duplicates; it is sorted in place.
+     *
+     * @param idxs indices in [0, n)
+     * @param n size of the index range
+     * @return
+     */
+    public static IdxSet of(int[] idxs, int n) {
+        return of(idxs, idxs.length, n);
+    }
+
+    /**
+     * Set of the first length indices of an array, which is sorted in place.
+     *
+     * @param idxs indices in [0, n)
+     * @param length number of indices to take from the array
+     * @param n size of the index range
+     * @return
+     */
+    public static IdxSet of(int[] idxs, int length, int n) {
+        Arrays.sort(idxs, 0, length);
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            if (size == 0 || idxs[i] != idxs[size - 1]) {
+                idxs[size++] = idxs[i];
+            }
+        }
+
+        // A bitmap takes n / 8 bytes and a sorted array 4 * size bytes
+        if ((long) size * 32 > n) {
+            long[] words = new long[(n + 63) >>> 6];
+            for (int i = 0; i < size; i++) {
+                words[idxs[i] >>> 6] |= 1L << idxs[i];
+            }
+            return new Dense(words, size);
+        } else {
+            return new Sparse(Arrays.copyOf(idxs, size));
+        }
+    }
+
+    /**
+     * Set of the indices in [0, n) that satisfy a predicate.
+     *
+     * @param n size of the index range
+     * @param predicate
+     * @return
+     */
+    public static IdxSet of(int n, IntPredicate predicate) {
+        return of(IntStream.range(0, n).filter(predicate).toArray(), n);
+    }
+
+    /**
+     * Whether the set contains an index.
+     *
+     * @param idx
+     * @return
+     */
+    public abstract boolean contains(int idx);
+
+    /**
+     * Number of indices in the set.
+     *
+     * @return
+     */
+    public abstract int size();
+
+    /**
+     * Applies an action to the indices of the set in increasing order.
+     *
+     * @param action
+     */
+    public abstract void forEach(IntConsumer action);
+
+    /**
+     * Indices of the set in increasing order.
+     *
+     * @return
+     */
+    public abstract IntStream stream();
+
+    /**
+     * Indices of the set in increasing order, in a new array.
+     *
+     * @return
+     */
+    public abstract int[] toArray();
+
+    @Override
+    public boolean test(int idx) {
+        return contains(idx);
+    }
+
+    private static class Dense extends IdxSet {
+
+        private final long[] words;
+        private final int size;
+
+        Dense(long[] words, int size) {
+            this.words = words;
+            this.size = size;
+        }
+
+        @Override
+        public boolean contains(int idx) {
+            int w = idx >>> 6;
+            return w < words.length && (words[w] & (1L << idx)) != 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEach(IntConsumer action) {
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    action.accept((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        public IntStream stream() {
+            IntStream.Builder builder = IntStream.builder();
+            forEach(builder);
+            return builder.build();
+        }
+
+        @Override
+        public int[] toArray() {
+            int[] idxs = new int[size];
+            int[] i = {0};
+            forEach(idx -> idxs[i[0]++] = idx);
+            return idxs;
+        }
+    }
+
+    private static class Sparse extends IdxSet {
+
+        private final int[] idxs;
+
+        Sparse(int[] idxs) {
+            this.idxs = idxs;
+        }
+
+        @Override
+        public boolean contains(int idx) {
+            return Arrays.binarySearch(idxs, idx) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return idxs.length;
+        }
+
+        @Override
+        public void forEach(IntConsumer action) {
+            for (int idx : idxs) {
+                action.accept(idx);
+            }
+        }
+
+        @Override
+        public IntStream stream() {
+            return Arrays.stream(idxs);
+        }
+
+        @Override
+        public int[] toArray() {
+            return idxs.clone();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.util;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random number generators derived from a single seed. Each
+ * generator is identified by a sequence of keys (such as a fold, a target
+ * size and a user), and its seed is a hash of the source seed and the keys.
+ * The same keys always give the same sequence of numbers, whatever the order
+ * or the thread in which generators are requested, and no generator is
+ * shared between threads.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+
+    /**
+     * Source with a random seed.
+     */
+    public RandomSource() {
+        this(new SplittableRandom().nextLong());
+    }
+
+    /**
+     *
+     * @param seed
+     */
+    public RandomSource(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Source derived from this one for the given keys.
+     *
+     * @param keys
+     * @return
+     */
+    public RandomSource split(long... keys) {
+        return new RandomSource(derive(keys));
+    }
+
+    /**
+     * Source derived from this one for a named use, such as a sampler or a
+     * recommender.
+     *
+     * @param name
+     * @param keys
+     * @return
+     */
+    public RandomSource split(String name, long... keys) {
+        return new RandomSource(derive(name.hashCode())).split(keys);
+    }
+
+    /**
+     * Random number generator for the given keys.
+     *
+     * @param keys
+     * @return
+     */
+    public SplittableRandom get(long... keys) {
+        return new SplittableRandom(derive(keys));
+    }
+
+    private long derive(long... keys) {
+        long h = mix(seed);
+        for (long key : keys) {
+            h = mix(h ^ mix(key + GOLDEN_GAMMA));
+        }
+        return h;
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -8,8 +8,8 @@
 */
 package es.uam.ir.util;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -18,8 +18,8 @@ import java.util.Map;
  */
 public class Timer {
 
-    private static final Map<Object, Long> now = new HashMap<>();
-    private static final Map<Object, Long> prev = new HashMap<>();
+    private static final Map<Object, Long> now = new ConcurrentHashMap<>();
+    private static final Map<Object, Long> prev = new ConcurrentHashMap<>();
 
     /**
      * @param obj
@@ -46,17 +46,18 @@ public class Timer {
         s -= min * 60;
         min -= h * 60;
         h -= d * 24;
-        System.out.print(msg + " (");
+        StringBuilder line = new StringBuilder(msg + " (");
         if (d > 0) {
-            System.out.print(d + " days ");
+            line.append(d + " days ");
         }
         if (h > 0) {
-            System.out.print(h + "h ");
+            line.append(h + "h ");
         }
         if (min > 0) {
-            System.out.print(min + "min ");
+            line.append(min + "min ");
         }
-        System.out.println(s + "s)");
+        line.append(s + "s)");
+        System.out.println(line);
         prev.put(obj, now.get(obj));
     }
 
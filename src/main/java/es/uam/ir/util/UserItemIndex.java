@@ -0,0 +1,140 @@
+/*
+* Copyright (C) 2020 Information Retrieval Group at Universidad Autónoma
+* de Madrid, http://ir.ii.uam.es.
+*
+* This Source Code Form is subject to the terms of the Mozilla Public
+* License, v. 2.0. If a copy of the MPL was not distributed with this
+* file, You can obtain one at http://mozilla.org/MPL/2.0/.
+*/
+package es.uam.ir.util;
+
+import es.uam.eps.ir.ranksys.fast.index.FastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.FastUserIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastItemIndex;
+import es.uam.eps.ir.ranksys.fast.index.SimpleFastUserIndex;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * User and item indexes of a rating file, built in a single pass that parses
+ * the user and item columns directly into primitive long sets. Ids are
+ * indexed in increasing order.
+ *
+ * @author Rocío Cañamares
+ * @author Pablo Castells
+ */
+public class UserItemIndex {
+
+    private final FastUserIndex<Long> userIndex;
+    private final FastItemIndex<Long> itemIndex;
+
+    private UserItemIndex(FastUserIndex<Long> userIndex, FastItemIndex<Long> itemIndex) {
+        this.userIndex = userIndex;
+        this.itemIndex = itemIndex;
+    }
+
+    /**
+     * Reads the users and items of a tab-separated rating file.
+     *
+     * @param dataPath
+     * @return
+     * @throws IOException
+     */
+    public static UserItemIndex load(String dataPath) throws IOException {
+        LongOpenHashSet users = new LongOpenHashSet();
+        LongOpenHashSet items = new LongOpenHashSet();
+
+        try (ByteReader in = new ByteReader(new FileInputStream(dataPath))) {
+            long[] ids = new long[2];
+            int line = 0;
+            int c = in.read();
+            while (c != -1) {
+                line++;
+                int nIds = 0;
+                while (nIds < 2) {
+                    boolean negative = c == '-';
+                    if (negative) {
+                        c = in.read();
+                    }
+                    if (c < '0' || c > '9') {
+                        throw new IOException(dataPath + ":" + line + ": expected a numeric id");
+                    }
+                    long id = 0;
+                    while (c >= '0' && c <= '9') {
+                        id = 10 * id + (c - '0');
+                        c = in.read();
+                    }
+                    ids[nIds++] = negative ? -id : id;
+                    if (nIds < 2) {
+                        if (c != '\t') {
+                            throw new IOException(dataPath + ":" + line + ": expected a tab-separated item id");
+                        }
+                        c = in.read();
+                    }
+                }
+                users.add(ids[0]);
+                items.add(ids[1]);
+
+                // Skip the rest of the line
+                while (c != '\n' && c != -1) {
+                    c = in.read();
+                }
+                if (c == '\n') {
+                    c = in.read();
+                }
+            }
+        }
+
+        long[] userIds = users.toLongArray();
+        long[] itemIds = items.toLongArray();
+        Arrays.sort(userIds);
+        Arrays.sort(itemIds);
+
+        return new UserItemIndex(
+                SimpleFastUserIndex.load(Arrays.stream(userIds).boxed()),
+                SimpleFastItemIndex.load(Arrays.stream(itemIds).boxed()));
+    }
+
+    public FastUserIndex<Long> getUserIndex() {
+        return userIndex;
+    }
+
+    public FastItemIndex<Long> getItemIndex() {
+        return itemIndex;
+    }
+
+    /**
+     * Unsynchronized buffered reading of single bytes.
+     */
+    private static class ByteReader implements AutoCloseable {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int position = 0;
+        private int length = 0;
+
+        ByteReader(InputStream in) {
+            this.in = in;
+        }
+
+        int read() throws IOException {
+            if (position == length) {
+                length = in.read(buffer);
+                position = 0;
+                if (length <= 0) {
+                    length = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}